@@ -0,0 +1,276 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.cbforest.Constants;
+import com.couchbase.cbforest.Database;
+import com.couchbase.cbforest.Document;
+import com.couchbase.cbforest.DocumentIterator;
+import com.couchbase.cbforest.ForestException;
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Predicate;
+import com.couchbase.lite.Query;
+import com.couchbase.lite.QueryOptions;
+import com.couchbase.lite.QueryRow;
+import com.couchbase.lite.View;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.util.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lazily reads the rows of an all-docs query, see ForestDBStore.getAllDocsCursor(). Each call
+ * to next() reads documents from a cbforest DocumentIterator until one makes a row, so the
+ * memory used doesn't depend on the number of documents. With options.getKeys(), the keys
+ * are looked up in chunks of ForestDBStore.MAX_RECORDS_TO_READ_FROM_FORESTDB_AT_ONCE.
+ * <p/>
+ * Not thread-safe. Call close() when done if the cursor is not read to the end.
+ */
+public class AllDocsCursor implements Closeable, Constants {
+    public static String TAG = ForestDBStore.TAG;
+
+    private final Database forest;
+    private final QueryOptions options;
+    private final boolean includeDocs;
+    private final int iteratorFlags;
+    private final Predicate<QueryRow> filter;
+    private final List<String> keys; // null to iterate over a key range
+    private final long totalRows;
+    private final boolean onlyConflicts;
+    private int keysRead = 0;
+    private int skip; // rows still to skip in next(), when the iterator can't skip them
+    private int limit;
+    private boolean started = false;
+    private boolean done = false;
+    private DocumentIterator itr = null;
+    private final DocumentMetadata meta = new DocumentMetadata();
+
+    AllDocsCursor(Database forest, QueryOptions options, long totalRows) {
+        this.forest = forest;
+        this.options = options;
+        this.totalRows = totalRows;
+        this.keys = options.getKeys();
+        this.filter = options.getPostFilter();
+        this.limit = options.getLimit();
+        this.onlyConflicts = options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS;
+        // ForestDB can only skip documents, so skip rows here if some documents don't make
+        // rows (filter, conflicts only). Skip doesn't apply to keys.
+        if (keys == null && (filter != null || onlyConflicts))
+            this.skip = options.getSkip();
+        else
+            this.skip = 0;
+        this.includeDocs = (options.isIncludeDocs() ||
+                options.getPostFilter() != null ||
+                options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS);
+
+        int flags = IteratorFlags.kDefault;
+        if (!includeDocs)
+            flags &= ~IteratorFlags.kIncludeBodies;
+        if (options.isDescending())
+            flags |= IteratorFlags.kDescending;
+        if (!options.isInclusiveStart())
+            flags &= ~IteratorFlags.kInclusiveStart;
+        if (!options.isInclusiveEnd())
+            flags &= ~IteratorFlags.kInclusiveEnd;
+        if (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED || keys != null)
+            flags |= IteratorFlags.kIncludeDeleted;
+        // NOTE: cbforest has no only-conflicts iterator flag; non-conflicted documents are
+        //       rejected first thing in rowForDocument().
+        this.iteratorFlags = flags;
+    }
+
+    /**
+     * Total number of documents in the database (not the number of rows of the query).
+     */
+    public long getTotalRows() {
+        return totalRows;
+    }
+
+    /**
+     * Number of rows skipped at the start, as requested by the options.
+     */
+    public int getOffset() {
+        return options.getSkip();
+    }
+
+    /**
+     * Returns the next row, or null when there are no more rows.
+     */
+    public QueryRow next() throws CouchbaseLiteException {
+        try {
+            while (!done) {
+                if (itr == null && !openNextIterator())
+                    break;
+                Document doc = itr.nextDocument();
+                if (doc == null) {
+                    itr.close();
+                    itr = null;
+                    continue;
+                }
+                QueryRow row;
+                try {
+                    row = rowForDocument(doc);
+                } finally {
+                    doc.free();
+                }
+                if (row == null)
+                    continue;
+                if (!meta.exists)
+                    return row; // missing key: not filtered, and not counted in the limit
+                if (filter != null && !filter.apply(row)) {
+                    Log.v(TAG, "   ... on 2nd thought, filter predicate skipped that row");
+                    continue;
+                }
+                if (skip > 0) {
+                    --skip;
+                    continue;
+                }
+                if (limit > 0 && --limit == 0)
+                    close();
+                return row;
+            }
+        } catch (ForestException e) {
+            Log.e(TAG, "Error in getAllDocs()", e);
+            close();
+            throw new CouchbaseLiteException(ForestBridge.err2status(e).getCode());
+        }
+        close();
+        return null;
+    }
+
+    /**
+     * Releases the cbforest iterator. Subsequent calls to next() return null.
+     */
+    @Override
+    public void close() {
+        done = true;
+        if (itr != null) {
+            itr.close();
+            itr = null;
+        }
+    }
+
+    /**
+     * Opens the iterator over the key range, or over the next chunk of keys.
+     *
+     * @return false if there is nothing left to iterate
+     */
+    private boolean openNextIterator() throws ForestException {
+        if (keys == null) {
+            if (started)
+                return false;
+            started = true;
+            String startKey;
+            String endKey;
+            if (options.isDescending()) {
+                startKey = (String) View.keyForPrefixMatch(
+                        options.getStartKey(), options.getPrefixMatchLevel());
+                endKey = (String) options.getEndKey();
+            } else {
+                startKey = (String) options.getStartKey();
+                endKey = (String) View.keyForPrefixMatch(
+                        options.getEndKey(), options.getPrefixMatchLevel());
+            }
+            int nativeSkip = (filter != null || onlyConflicts) ? 0 : options.getSkip();
+            itr = forest.iterator(startKey, endKey, nativeSkip, iteratorFlags);
+            return true;
+        }
+
+        if (keysRead >= keys.size())
+            return false;
+        int plan = Math.min(keys.size() - keysRead,
+                ForestDBStore.MAX_RECORDS_TO_READ_FROM_FORESTDB_AT_ONCE);
+        String[] docIDs = keys.subList(keysRead, keysRead + plan).toArray(new String[plan]);
+        HandleBusyBackoff backoff = new HandleBusyBackoff("getAllDocs()");
+        while (itr == null) {
+            try {
+                itr = forest.iterator(docIDs, iteratorFlags);
+            } catch (ForestException e) {
+                if (!backoff.retry(e))
+                    throw e;
+            }
+        }
+        keysRead += plan;
+        return true;
+    }
+
+    /**
+     * Returns the row for the document, or null if the options exclude it.
+     */
+    private QueryRow rowForDocument(Document doc) throws ForestException {
+        // Reject non-conflicted docs before reading anything else (with keys, missing docs
+        // still need their row):
+        if (onlyConflicts && keys == null && !doc.conflicted())
+            return null;
+        if (keys == null) {
+            // Range iterators only return existing documents. With onlyConflicts, the doc is
+            // known to be conflicted already:
+            meta.loadExisting(doc,
+                    options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS);
+            if (onlyConflicts)
+                meta.conflicted = true;
+        } else {
+            meta.load(doc);
+        }
+        String docID = meta.docID;
+        if (!meta.exists) {
+            Log.v(TAG, "AllDocs: No such row with key=\"%s\"", docID);
+            return new QueryRow(null, 0, docID, null, null);
+        }
+
+        boolean deleted = meta.isDeleted();
+        if (deleted &&
+                options.getAllDocsMode() != Query.AllDocsMode.INCLUDE_DELETED &&
+                keys == null)
+            return null; // skip deleted doc
+        if (!meta.conflicted && onlyConflicts)
+            return null; // skip non-conflicted doc
+
+        String revID = meta.revID;
+        long sequence = meta.sequence;
+
+        RevisionInternal docRevision = null;
+        if (includeDocs) {
+            // Fill in the document contents:
+            docRevision = ForestBridge.revisionObject(doc, meta, true);
+            if (docRevision == null)
+                Log.w(TAG, "AllDocs: Unable to read body of doc %s", docID);
+        }
+
+        List<String> conflicts = new ArrayList<String>();
+        if ((options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS
+                || options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS)
+                && meta.conflicted) {
+            conflicts = ForestBridge.getCurrentRevisionIDs(doc);
+            if (conflicts != null && conflicts.size() == 1)
+                conflicts = null;
+        }
+
+        Map<String, Object> value = new HashMap<String, Object>();
+        value.put("rev", revID);
+        if (deleted) // Note: In case of false, should not add for java
+            value.put("deleted", (deleted ? true : null));
+        value.put("_conflicts", conflicts);// (not found in CouchDB)
+
+        return new QueryRow(docID,
+                sequence,
+                docID,
+                value,
+                docRevision);
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of decoded document bodies, see ForestDBStore.setBodyCacheSize(). Holds
+ * one revision per document: docID -> (revID, properties). The cached properties, and all
+ * the maps and lists nested in them, are read-only so they can be shared between readers.
+ * <p/>
+ * Thread-safe.
+ */
+final class BodyCache {
+    private final Map<String, Entry> entries;
+
+    BodyCache(final int maxDocs) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxDocs;
+            }
+        };
+    }
+
+    /**
+     * Returns the read-only properties of the revision, or null if they aren't cached.
+     */
+    synchronized Map<String, Object> get(String docID, String revID) {
+        Entry entry = entries.get(docID);
+        if (entry == null || !entry.revID.equals(revID))
+            return null;
+        return entry.properties;
+    }
+
+    /**
+     * Caches a read-only copy of the properties of the revision, replacing any other
+     * revision of the document.
+     */
+    void put(String docID, String revID, Map<String, Object> properties) {
+        Entry entry = new Entry(revID, readOnlyMap(properties));
+        synchronized (this) {
+            entries.put(docID, entry);
+        }
+    }
+
+    synchronized void remove(String docID) {
+        entries.remove(docID);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object readOnly(Object value) {
+        if (value instanceof Map)
+            return readOnlyMap((Map<String, Object>) value);
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> copy = new ArrayList<Object>(list.size());
+            for (Object item : list)
+                copy.add(readOnly(item));
+            return Collections.unmodifiableList(copy);
+        }
+        return value; // strings, numbers, booleans and null are immutable
+    }
+
+    private static Map<String, Object> readOnlyMap(Map<String, Object> map) {
+        Map<String, Object> copy = new LinkedHashMap<String, Object>(map.size() * 4 / 3 + 1);
+        for (Map.Entry<String, Object> e : map.entrySet())
+            copy.put(e.getKey(), readOnly(e.getValue()));
+        return Collections.unmodifiableMap(copy);
+    }
+
+    private static class Entry {
+        final String revID;
+        final Map<String, Object> properties;
+
+        Entry(String revID, Map<String, Object> properties) {
+            this.revID = revID;
+            this.properties = properties;
+        }
+    }
+}
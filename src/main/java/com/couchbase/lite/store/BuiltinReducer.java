@@ -0,0 +1,366 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.Reducer;
+import com.couchbase.lite.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CouchDB's built-in reduce functions: _count, _sum and _stats.
+ * <p/>
+ * They can be used like any other Reducer, but ForestDBViewStore recognizes them and computes
+ * them straight from the JSON bytes of the index values, without decoding them into Java
+ * objects (_count doesn't even read the values).
+ */
+public abstract class BuiltinReducer implements Reducer {
+    public static final String TAG = Log.TAG_VIEW;
+
+    /**
+     * _count: number of rows. Returns a Long.
+     */
+    public static final BuiltinReducer COUNT = new BuiltinReducer("_count") {
+        @Override
+        Object result(Accumulator acc) {
+            return acc.count;
+        }
+    };
+
+    /**
+     * _sum: sum of the numeric values. Arrays of numbers are summed element-wise, and, as in
+     * CouchDB, plain numbers mixed with arrays are added to their first element.
+     * Returns a Long, summed exactly, if all values were integers and their sum fits in a
+     * long, otherwise a Double.
+     */
+    public static final BuiltinReducer SUM = new BuiltinReducer("_sum") {
+        @Override
+        Object result(Accumulator acc) {
+            if (acc.elements != null) {
+                List<Object> result = new ArrayList<Object>(acc.elements.size());
+                for (Accumulator element : acc.elementsWithScalars())
+                    result.add(element.getSum());
+                return result;
+            }
+            return acc.getSum();
+        }
+    };
+
+    /**
+     * _stats: a map with "sum", "count", "min", "max" and "sumsqr" of the numeric values.
+     * With arrays of numbers, a list of such maps, one per element; plain numbers mixed with
+     * arrays count towards the first element, as with _sum.
+     */
+    public static final BuiltinReducer STATS = new BuiltinReducer("_stats") {
+        @Override
+        Object result(Accumulator acc) {
+            if (acc.elements != null) {
+                List<Object> result = new ArrayList<Object>(acc.elements.size());
+                for (Accumulator element : acc.elementsWithScalars())
+                    result.add(element.getStats());
+                return result;
+            }
+            return acc.getStats();
+        }
+    };
+
+    private final String name;
+
+    private BuiltinReducer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the built-in reducer with the given name ("_count", "_sum" or "_stats"),
+     * or null if there is none.
+     */
+    public static BuiltinReducer forName(String name) {
+        if (COUNT.name.equals(name))
+            return COUNT;
+        else if (SUM.name.equals(name))
+            return SUM;
+        else if (STATS.name.equals(name))
+            return STATS;
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @Override
+    public Object reduce(List<Object> keys, List<Object> values, boolean rereduce) {
+        Accumulator acc = newAccumulator();
+        for (Object value : values) {
+            if (rereduce)
+                acc.addReduced(value);
+            else
+                acc.add(value);
+        }
+        return result(acc);
+    }
+
+    /**
+     * Whether the reducer looks at the values at all (_count doesn't).
+     */
+    boolean needsValues() {
+        return this != COUNT;
+    }
+
+    Accumulator newAccumulator() {
+        return new Accumulator();
+    }
+
+    abstract Object result(Accumulator acc);
+
+    /**
+     * Running count/sum/min/max/sumsqr of the values of a group.
+     */
+    static class Accumulator {
+        long count = 0; // rows
+        long numbers = 0; // numeric values
+        double sum = 0;
+        long longSum = 0; // exact sum, as long as integral is set
+        double sumsqr = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        boolean integral = true; // all numbers were integers, and longSum didn't overflow
+        List<Accumulator> elements = null; // one per array element, once an array was seen
+        private final Accumulator root; // the accumulator of the group, for element ones
+        private boolean warned = false; // a non-numeric value was logged (root only)
+
+        Accumulator() {
+            this.root = this;
+        }
+
+        private Accumulator(Accumulator root) {
+            this.root = root;
+        }
+
+        /**
+         * Empties the accumulator to start a new group of the same query.
+         */
+        void reset() {
+            count = 0;
+            numbers = 0;
+            sum = 0;
+            longSum = 0;
+            sumsqr = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            integral = true;
+            elements = null;
+        }
+
+        /**
+         * Adds a row whose value is only available as JSON (may be null if not needed).
+         */
+        void addJSON(byte[] json) {
+            count++;
+            if (json == null)
+                return;
+            int len = json.length;
+            int i = 0;
+            boolean negative = false;
+            if (i < len && json[i] == '-') {
+                negative = true;
+                i++;
+            }
+            // Fast path: integers, parsed in place
+            if (i < len && i + 18 >= len) {
+                long n = 0;
+                int start = i;
+                while (i < len && json[i] >= '0' && json[i] <= '9')
+                    n = n * 10 + (json[i++] - '0');
+                if (i == len && i > start) {
+                    addLong(negative ? -n : n);
+                    return;
+                }
+            }
+            // Anything else goes through the JSON parser:
+            try {
+                addValue(Manager.getObjectMapper().readValue(json, Object.class));
+            } catch (IOException e) {
+                warnOnce("invalid JSON value", new String(json));
+            }
+        }
+
+        /**
+         * Adds a row whose value has been decoded already.
+         */
+        void add(Object value) {
+            count++;
+            addValue(value);
+        }
+
+        /**
+         * Adds the result of an earlier reduction of the same reducer.
+         */
+        void addReduced(Object reduced) {
+            if (reduced instanceof Map) {
+                // _stats
+                Map<?, ?> stats = (Map<?, ?>) reduced;
+                long n = toLong(stats.get("count"));
+                count += n;
+                numbers += n;
+                sum += toDouble(stats.get("sum"));
+                sumsqr += toDouble(stats.get("sumsqr"));
+                if (n > 0) {
+                    min = Math.min(min, toDouble(stats.get("min")));
+                    max = Math.max(max, toDouble(stats.get("max")));
+                }
+                integral = false;
+            } else if (reduced instanceof List) {
+                // element-wise _sum or _stats
+                List<?> list = (List<?>) reduced;
+                for (int i = 0; i < list.size(); i++)
+                    element(i).addReduced(list.get(i));
+            } else {
+                // _count and _sum: partial results just add up
+                if (reduced instanceof Number)
+                    count += ((Number) reduced).longValue();
+                addValue(reduced);
+            }
+        }
+
+        Object getSum() {
+            return integral ? (Object) longSum : (Object) sum;
+        }
+
+        Map<String, Object> getStats() {
+            Map<String, Object> stats = new HashMap<String, Object>();
+            stats.put("sum", sum);
+            stats.put("count", numbers);
+            stats.put("min", numbers > 0 ? min : 0.0);
+            stats.put("max", numbers > 0 ? max : 0.0);
+            stats.put("sumsqr", sumsqr);
+            return stats;
+        }
+
+        /**
+         * The element accumulators, with the plain numbers merged into the first one.
+         */
+        List<Accumulator> elementsWithScalars() {
+            if (numbers == 0)
+                return elements;
+            Accumulator first = elements.isEmpty() ? new Accumulator(root) : elements.get(0);
+            Accumulator merged = new Accumulator(root);
+            merged.numbers = first.numbers + numbers;
+            merged.sum = first.sum + sum;
+            merged.sumsqr = first.sumsqr + sumsqr;
+            merged.min = Math.min(first.min, min);
+            merged.max = Math.max(first.max, max);
+            merged.integral = first.integral && integral;
+            merged.longSum = first.longSum;
+            if (merged.integral)
+                merged.addToLongSum(longSum);
+            List<Accumulator> result = new ArrayList<Accumulator>(elements);
+            if (result.isEmpty())
+                result.add(merged);
+            else
+                result.set(0, merged);
+            return result;
+        }
+
+        private Accumulator element(int i) {
+            if (elements == null)
+                elements = new ArrayList<Accumulator>();
+            while (elements.size() <= i)
+                elements.add(new Accumulator(root));
+            return elements.get(i);
+        }
+
+        private void addValue(Object value) {
+            if (value instanceof Long || value instanceof Integer ||
+                    value instanceof Short || value instanceof Byte) {
+                addLong(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                double d = ((Number) value).doubleValue();
+                if (d == Math.rint(d) && d >= Long.MIN_VALUE && d < Long.MAX_VALUE)
+                    addLong((long) d);
+                else
+                    addDouble(d);
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                if (elements == null)
+                    elements = new ArrayList<Accumulator>(list.size());
+                for (int i = 0; i < list.size(); i++)
+                    element(i).addValue(list.get(i));
+            } else if (value != null) {
+                warnOnce("ignoring non-numeric value", value);
+            }
+        }
+
+        private void addLong(long n) {
+            addToStats(n);
+            if (integral)
+                addToLongSum(n);
+        }
+
+        private void addDouble(double d) {
+            addToStats(d);
+            integral = false;
+        }
+
+        private void addToStats(double d) {
+            numbers++;
+            sum += d;
+            sumsqr += d * d;
+            if (d < min)
+                min = d;
+            if (d > max)
+                max = d;
+        }
+
+        /**
+         * Adds to the exact sum, falling back to the double one if it would overflow.
+         */
+        private void addToLongSum(long n) {
+            long result = longSum + n;
+            if (((longSum ^ result) & (n ^ result)) < 0)
+                integral = false;
+            else
+                longSum = result;
+        }
+
+        /**
+         * Logs the first bad value of a query (or of a reduce() call), not every one.
+         */
+        private void warnOnce(String message, Object value) {
+            if (root.warned)
+                return;
+            root.warned = true;
+            Log.w(TAG, "Built-in reduce: %s %s (further ones are ignored silently)",
+                    message, value);
+        }
+
+        private static double toDouble(Object o) {
+            return o instanceof Number ? ((Number) o).doubleValue() : 0.0;
+        }
+
+        private static long toLong(Object o) {
+            return o instanceof Number ? ((Number) o).longValue() : 0;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.RevisionList;
+import com.couchbase.lite.internal.RevisionInternal;
+
+/**
+ * Metadata of a batch of changed revisions, as returned by ForestDBStore.changesBatchSince():
+ * sequence, docID, revID, deleted and conflicted flags, kept in parallel arrays. No
+ * RevisionInternal is created unless getRevision() or toRevisionList() is called.
+ */
+public class ChangesBatch {
+    private int count = 0;
+    private long[] sequences;
+    private String[] docIDs;
+    private String[] revIDs;
+    private boolean[] deleted;
+    private boolean[] conflicted;
+    private long lastSequence;
+
+    ChangesBatch(long lastSequence, int capacity) {
+        this.lastSequence = lastSequence;
+        capacity = Math.max(capacity, 1);
+        sequences = new long[capacity];
+        docIDs = new String[capacity];
+        revIDs = new String[capacity];
+        deleted = new boolean[capacity];
+        conflicted = new boolean[capacity];
+    }
+
+    void add(long sequence, String docID, String revID, boolean isDeleted, boolean isConflicted) {
+        if (count == sequences.length)
+            grow();
+        sequences[count] = sequence;
+        docIDs[count] = docID;
+        revIDs[count] = revID;
+        deleted[count] = isDeleted;
+        conflicted[count] = isConflicted;
+        count++;
+    }
+
+    void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    private void grow() {
+        int capacity = sequences.length * 2;
+        long[] newSequences = new long[capacity];
+        String[] newDocIDs = new String[capacity];
+        String[] newRevIDs = new String[capacity];
+        boolean[] newDeleted = new boolean[capacity];
+        boolean[] newConflicted = new boolean[capacity];
+        System.arraycopy(sequences, 0, newSequences, 0, count);
+        System.arraycopy(docIDs, 0, newDocIDs, 0, count);
+        System.arraycopy(revIDs, 0, newRevIDs, 0, count);
+        System.arraycopy(deleted, 0, newDeleted, 0, count);
+        System.arraycopy(conflicted, 0, newConflicted, 0, count);
+        sequences = newSequences;
+        docIDs = newDocIDs;
+        revIDs = newRevIDs;
+        deleted = newDeleted;
+        conflicted = newConflicted;
+    }
+
+    /**
+     * Number of revisions in the batch.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * The sequence to pass to changesBatchSince() to get the following batch.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public long getSequence(int i) {
+        checkIndex(i);
+        return sequences[i];
+    }
+
+    public String getDocID(int i) {
+        checkIndex(i);
+        return docIDs[i];
+    }
+
+    public String getRevID(int i) {
+        checkIndex(i);
+        return revIDs[i];
+    }
+
+    public boolean isDeleted(int i) {
+        checkIndex(i);
+        return deleted[i];
+    }
+
+    /**
+     * Whether the document of the i-th revision is in conflict.
+     */
+    public boolean isConflicted(int i) {
+        checkIndex(i);
+        return conflicted[i];
+    }
+
+    /**
+     * Creates a (bodiless) RevisionInternal for the i-th revision.
+     */
+    public RevisionInternal getRevision(int i) {
+        checkIndex(i);
+        RevisionInternal rev = new RevisionInternal(docIDs[i], revIDs[i], deleted[i]);
+        rev.setSequence(sequences[i]);
+        return rev;
+    }
+
+    /**
+     * Creates the RevisionList changesSince() would have returned for these revisions.
+     */
+    public RevisionList toRevisionList() {
+        RevisionList revs = new RevisionList();
+        for (int i = 0; i < count; i++)
+            revs.add(getRevision(i));
+        return revs;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+    }
+}
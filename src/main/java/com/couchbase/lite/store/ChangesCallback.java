@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.internal.RevisionInternal;
+
+/**
+ * Receives the revisions of a changes feed, see ForestDBStore.streamChangesSince() and
+ * ForestDBStore.followChanges().
+ */
+public interface ChangesCallback {
+    /**
+     * Called for each changed revision, in sequence order, on the thread reading the feed.
+     *
+     * @return true to keep reading, false to stop the feed
+     */
+    boolean onChange(RevisionInternal rev);
+}
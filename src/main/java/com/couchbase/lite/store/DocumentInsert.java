@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.Status;
+import com.couchbase.lite.internal.RevisionInternal;
+
+import java.util.Map;
+
+/**
+ * One new revision for ForestDBStore.addBatch(): the same parameters as Store.add(), plus
+ * the outcome once the batch has been processed.
+ */
+public class DocumentInsert {
+    private final String docID;
+    private final String prevRevID;
+    private final Map<String, Object> properties;
+    private final boolean deleting;
+
+    private RevisionInternal revision = null;
+    private Status status = null;
+
+    public DocumentInsert(String docID, String prevRevID, Map<String, Object> properties) {
+        this(docID, prevRevID, properties, false);
+    }
+
+    public DocumentInsert(String docID,
+                          String prevRevID,
+                          Map<String, Object> properties,
+                          boolean deleting) {
+        this.docID = docID;
+        this.prevRevID = prevRevID;
+        this.properties = properties;
+        this.deleting = deleting;
+    }
+
+    public String getDocID() {
+        return docID;
+    }
+
+    public String getPrevRevID() {
+        return prevRevID;
+    }
+
+    public Map<String, Object> getProperties() {
+        return properties;
+    }
+
+    public boolean isDeleting() {
+        return deleting;
+    }
+
+    /**
+     * The inserted revision, or null if the insertion failed or hasn't been processed.
+     */
+    public RevisionInternal getRevision() {
+        return revision;
+    }
+
+    /**
+     * Status of the insertion, as add() would have set it (e.g. CREATED, CONFLICT), or null
+     * if it hasn't been processed.
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    void setResult(RevisionInternal revision, Status status) {
+        this.revision = revision;
+        this.status = status;
+    }
+}
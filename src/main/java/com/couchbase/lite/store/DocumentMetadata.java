@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.cbforest.Constants.C4RevisionFlags;
+import com.couchbase.cbforest.Document;
+
+/**
+ * Metadata of a cbforest Document and of its selected revision, read from the Document once
+ * so that loops over many documents don't go through JNI again for every field they look at.
+ * The deleted and leaf flags both come from the revision flags.
+ * <p/>
+ * Meant to be reused: one instance per loop, reloaded for each document or revision.
+ */
+final class DocumentMetadata {
+    String docID;
+    boolean exists;
+    boolean conflicted;
+
+    // selected revision:
+    String revID;
+    long sequence;
+    int revFlags;
+
+    /**
+     * Reads the document's metadata and that of its selected (normally current) revision.
+     */
+    DocumentMetadata load(Document doc) {
+        docID = doc.getDocID();
+        exists = doc.exists();
+        if (exists) {
+            conflicted = doc.conflicted();
+            loadSelected(doc);
+        } else {
+            conflicted = false;
+            revID = null;
+            sequence = 0;
+            revFlags = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Same as load() for a document known to exist, such as one returned by a changes or
+     * key range iterator: doesn't ask cbforest whether it exists, nor whether it is in
+     * conflict unless withConflicted is set (otherwise conflicted is just false).
+     */
+    DocumentMetadata loadExisting(Document doc, boolean withConflicted) {
+        docID = doc.getDocID();
+        exists = true;
+        conflicted = withConflicted && doc.conflicted();
+        loadSelected(doc);
+        return this;
+    }
+
+    /**
+     * Reads the metadata of the selected revision only, after selecting another revision of
+     * the same document.
+     */
+    DocumentMetadata loadSelected(Document doc) {
+        revID = doc.getSelectedRevID();
+        sequence = doc.getSelectedSequence();
+        revFlags = (int) doc.getSelectedRevFlags();
+        return this;
+    }
+
+    /**
+     * Whether the selected revision is a deletion. When the current revision is selected,
+     * this is also whether the document is deleted.
+     */
+    boolean isDeleted() {
+        return (revFlags & C4RevisionFlags.kRevDeleted) != 0;
+    }
+
+    boolean isLeaf() {
+        return (revFlags & C4RevisionFlags.kRevLeaf) != 0;
+    }
+}
@@ -22,6 +22,8 @@ import com.couchbase.lite.Manager;
 import com.couchbase.lite.Status;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.util.Log;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -56,6 +58,21 @@ public class ForestBridge implements Constants {
         return rev;
     }
 
+    /**
+     * Same as revisionObject(doc, docID, null, withBody), using the metadata of the selected
+     * revision already read into meta.
+     */
+    static RevisionInternal revisionObject(Document doc, DocumentMetadata meta, boolean withBody) {
+        RevisionInternal rev = new RevisionInternal(meta.docID, meta.revID, meta.isDeleted());
+        rev.setSequence(meta.sequence);
+        if (withBody) {
+            Status status = loadBodyOfRevisionObject(rev, doc);
+            if (status.isError() && status.getCode() != Status.GONE)
+                return null;
+        }
+        return rev;
+    }
+
     /**
      * in CBLForestBridge.m
      * + (BOOL) loadBodyOfRevisionObject: (CBL_MutableRevision*)rev
@@ -96,6 +113,53 @@ public class ForestBridge implements Constants {
         return properties;
     }
 
+    /**
+     * Adds to outDigests the "digest" of every attachment in the "_attachments" property of a
+     * JSON revision body. The body is scanned with a streaming parser that skips every other
+     * property without decoding it, and stops after "_attachments".
+     */
+    static void findAttachmentDigests(byte[] body, List<String> outDigests) {
+        if (body == null || body.length == 0)
+            return;
+        try {
+            JsonParser parser = Manager.getObjectMapper().getFactory().createParser(body);
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT)
+                    return;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (!"_attachments".equals(name)) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    if (value != JsonToken.START_OBJECT)
+                        return;
+                    // Each attachment:
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        if (parser.nextToken() != JsonToken.START_OBJECT) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        // Each property of the attachment:
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String key = parser.getCurrentName();
+                            JsonToken token = parser.nextToken();
+                            if ("digest".equals(key) && token == JsonToken.VALUE_STRING)
+                                outDigests.add(parser.getText());
+                            else
+                                parser.skipChildren();
+                        }
+                    }
+                    return;
+                }
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to parse body: [%s]", new String(body));
+        }
+    }
 
     /**
      * Not include deleted leaf node
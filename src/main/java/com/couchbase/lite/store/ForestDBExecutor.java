@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of worker threads used by the ForestDB stores to spread CPU-bound work
+ * (map functions, JSON encoding/decoding, ...) across the available cores.
+ * <p/>
+ * NOTE: Pool workers never touch cbforest handles. Callers read from ForestDB on their own
+ * thread and only hand plain Java objects to the pool.
+ */
+final class ForestDBExecutor {
+    private static final String THREAD_NAME_PREFIX = "CBLForestDBWorker-";
+
+    private static ExecutorService executor = null;
+    private static ScheduledExecutorService scheduler = null;
+
+    private ForestDBExecutor() {
+    }
+
+    /**
+     * Number of worker threads, one per available processor.
+     */
+    static int getThreadCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns the shared executor, creating it on first use. Worker threads are daemons so
+     * the pool never keeps the process alive.
+     */
+    static synchronized ExecutorService get() {
+        if (executor == null) {
+            final AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(getThreadCount(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, THREAD_NAME_PREFIX + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the shared single-threaded scheduler for delayed housekeeping (e.g. closing
+     * idle view indexes), creating it on first use. Scheduled tasks must be short.
+     */
+    static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, THREAD_NAME_PREFIX + "Scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+}
@@ -25,8 +25,6 @@ import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.DocumentChange;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.Misc;
-import com.couchbase.lite.Predicate;
-import com.couchbase.lite.Query;
 import com.couchbase.lite.QueryOptions;
 import com.couchbase.lite.QueryRow;
 import com.couchbase.lite.ReplicationFilter;
@@ -34,7 +32,6 @@ import com.couchbase.lite.Revision;
 import com.couchbase.lite.RevisionList;
 import com.couchbase.lite.Status;
 import com.couchbase.lite.TransactionalTask;
-import com.couchbase.lite.View;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.support.RevisionUtils;
 import com.couchbase.lite.support.action.Action;
@@ -47,21 +44,29 @@ import com.couchbase.lite.util.NativeLibUtils;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.couchbase.cbforest.Constants.C4ErrorDomain.ForestDBDomain;
-import static com.couchbase.cbforest.Constants.FDBErrors.FDB_RESULT_HANDLE_BUSY;
 
 public class ForestDBStore implements Store, EncryptableStore, Constants {
 
@@ -81,10 +86,28 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
 
     public static String kDBFilename = "db.forest";
 
-    private static final int MAX_RECORDS_TO_READ_FROM_FORESTDB_AT_ONCE = 500;
+    static final int MAX_RECORDS_TO_READ_FROM_FORESTDB_AT_ONCE = 500;
 
     private static final int kDefaultMaxRevTreeDepth = 20;
 
+    // Minimum number of documents in addBatch() to encode their JSON on the worker pool
+    private static final int PARALLEL_JSON_MIN_BATCH = 16;
+
+    // Number of revision bodies scanned together for attachment digests
+    private static final int ATTACHMENT_SCAN_BATCH_SIZE = 64;
+
+    // Number of revisions read ahead of the filter results, with parallel filtering
+    private static final int PARALLEL_FILTER_WINDOW = 64;
+
+    // see setParallelFilterEnabled()
+    private static volatile boolean parallelFilterEnabled = false;
+
+    // see setBodyCacheSize()
+    private static volatile int bodyCacheSize = 0;
+
+    // see setGroupCommitEnabled()
+    private static volatile boolean groupCommitEnabled = false;
+
     protected String directory;
     private String forestPath;
     private Manager manager;
@@ -95,6 +118,26 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
     private boolean readOnly = false;
     private SymmetricKey encryptionKey;
 
+    // decoded bodies of recently read revisions, or null if disabled
+    private final BodyCache bodyCache;
+
+    // revision trees of recently read documents
+    private final RevTreeCache revTrees = new RevTreeCache();
+
+    // view name -> view store, see getViewStorage()
+    private final Map<String, ForestDBViewStore> viewStores =
+            new HashMap<String, ForestDBViewStore>();
+    // names of the views on disk, or null until first listed. Guarded by viewStores.
+    private Set<String> viewNames = null;
+
+    // Notified when a transaction is committed, see waitForChanges()
+    private final Object commitMonitor = new Object();
+
+    // Top-level transactions waiting to be run by the group leader, see groupCommit()
+    private final Object groupLock = new Object();
+    private final List<GroupedTask> groupQueue = new ArrayList<GroupedTask>();
+    private boolean groupLeaderActive = false; // guarded by groupLock
+
     private ThreadLocal<Integer> transactionLevel4Thread = new ThreadLocal<Integer>() {
         @Override
         protected Integer initialValue() {
@@ -106,6 +149,87 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
     private static native byte[] nativeDerivePBKDF2SHA256Key(
             String password, byte[] salt, int rounds);
 
+    ///////////////////////////////////////////////////////////////////////////
+    // Settings
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * If enabled, when changesSince() (or a changes feed) has a filter, the filter runs on a
+     * pool of worker threads for up to PARALLEL_FILTER_WINDOW revisions read ahead, instead of
+     * one revision at a time on the calling thread. Revisions are still returned in sequence
+     * order. The filter must be thread-safe. Disabled by default.
+     */
+    public static void setParallelFilterEnabled(boolean enabled) {
+        parallelFilterEnabled = enabled;
+    }
+
+    public static boolean isParallelFilterEnabled() {
+        return parallelFilterEnabled;
+    }
+
+    /**
+     * Sets how many decoded document bodies each store opened afterwards keeps in memory, so
+     * that reading the same revision again with getDocument() doesn't decode its JSON again.
+     * Only the most recently read revision of each document is kept. Readers get their own
+     * copy of the top-level properties, but nested maps and lists are shared and read-only.
+     * A value of 0 disables the cache, which is the default.
+     */
+    public static void setBodyCacheSize(int maxDocs) {
+        bodyCacheSize = maxDocs;
+    }
+
+    public static int getBodyCacheSize() {
+        return bodyCacheSize;
+    }
+
+    /**
+     * If enabled, document writes (add(), forceInsert() and forceInsertBatch()) that aren't
+     * part of an enclosing transaction and are started by other threads while a commit is in
+     * progress are run together in the next ForestDB transaction, so they share one commit.
+     * A write that doesn't have to wait for another commit isn't delayed. Each caller still
+     * gets its own result: if one of the grouped writes fails, the group is rolled back and
+     * the other writes are run again together. Transactions run with runInTransaction() are
+     * never grouped.
+     * <p/>
+     * A grouped write runs on the thread of the group leader, and may run more than once, and
+     * so does everything it calls back: the StorageValidation block passed to it and the
+     * delegate's generateRevID(). These must then be thread-safe and free of side effects
+     * outside the database. Disabled by default.
+     */
+    public static void setGroupCommitEnabled(boolean enabled) {
+        groupCommitEnabled = enabled;
+    }
+
+    public static boolean isGroupCommitEnabled() {
+        return groupCommitEnabled;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Statistics
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Number of times a ForestDB operation failed because the handle was busy
+     * (FDB_RESULT_HANDLE_BUSY), across all stores.
+     */
+    public static long getHandleBusyCount() {
+        return HandleBusyBackoff.busyCount.get();
+    }
+
+    /**
+     * Total time, in milliseconds, spent waiting to retry operations on a busy handle.
+     */
+    public static long getHandleBusyWaitTime() {
+        return HandleBusyBackoff.busyWaitMillis.get();
+    }
+
+    /**
+     * Number of operations which gave up because the handle stayed busy.
+     */
+    public static long getHandleBusyFailureCount() {
+        return HandleBusyBackoff.busyFailures.get();
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Constructor
     ///////////////////////////////////////////////////////////////////////////
@@ -125,6 +249,8 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
         this.forest = null;
         this.autoCompact = true;
         this.maxRevTreeDepth = kDefaultMaxRevTreeDepth;
+        int cacheSize = bodyCacheSize;
+        this.bodyCache = cacheSize > 0 ? new BodyCache(cacheSize) : null;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -173,6 +299,15 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
 
     @Override
     public void close() {
+        synchronized (viewStores) {
+            for (ForestDBViewStore viewStore : viewStores.values())
+                viewStore.close();
+            viewStores.clear();
+            viewNames = null;
+        }
+        if (bodyCache != null)
+            bodyCache.clear();
+        revTrees.clear();
         if (forest != null) {
             try {
                 forest.close();
@@ -181,6 +316,9 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
             }
             forest = null;
         }
+        synchronized (commitMonitor) {
+            commitMonitor.notifyAll();
+        }
     }
 
     @Override
@@ -284,6 +422,10 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
     public void compact() throws CouchbaseLiteException {
         try {
             forest.compact();
+            // Bodies of old revisions are gone:
+            if (bodyCache != null)
+                bodyCache.clear();
+            revTrees.clear();
         } catch (ForestException e) {
             Log.e(TAG, "Failed to compact(): domain=%d code=%d", e, e.domain, e.code);
             throw new CouchbaseLiteException(Status.UNKNOWN);
@@ -322,20 +464,143 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
         if (doc == null)
             return null;
         try {
-            Status res = selectRev(doc, inRevID, withBody);
-            outStatus.setCode(res.getCode());
-            if (outStatus.isError() && outStatus.getCode() != Status.GONE)
-                return null;
-            if (inRevID == null && doc.selectedRevDeleted()) {
-                outStatus.setCode(Status.DELETED);
-                return null;
-            }
-            return ForestBridge.revisionObject(doc, docID, inRevID, withBody);
+            return revisionObject(doc, docID, inRevID, withBody, outStatus);
         } finally {
             doc.free();
         }
     }
 
+    /**
+     * Loads several revisions through multi-key DocumentIterators, instead of calling
+     * getDocument() once per revision.
+     *
+     * @param docIDs      document IDs; may contain duplicates
+     * @param revIDs      revision ID for each entry of docIDs, or null for the current revision
+     * @param outStatuses optional; receives the status of each entry, as getDocument() would
+     * @return the revisions, in the same order as docIDs. An entry is null where getDocument()
+     * would have returned null.
+     */
+    List<RevisionInternal> getDocuments(List<String> docIDs,
+                                        List<String> revIDs,
+                                        boolean withBody,
+                                        Status[] outStatuses) {
+        int count = docIDs.size();
+        RevisionInternal[] revs = new RevisionInternal[count];
+        boolean[] loaded = new boolean[count];
+
+        // docID -> indexes of the entries asking for it
+        Map<String, List<Integer>> indexes = new HashMap<String, List<Integer>>();
+        List<String> uniqueDocIDs = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            String docID = docIDs.get(i);
+            List<Integer> entries = indexes.get(docID);
+            if (entries == null) {
+                entries = new ArrayList<Integer>(1);
+                indexes.put(docID, entries);
+                uniqueDocIDs.add(docID);
+            }
+            entries.add(i);
+        }
+
+        // Rev trees are needed to select non-current revisions, so always include bodies:
+        int iteratorFlags = IteratorFlags.kDefault | IteratorFlags.kIncludeDeleted;
+        HandleBusyBackoff backoff = new HandleBusyBackoff("getDocuments()");
+        int read = 0;
+        while (read < uniqueDocIDs.size()) {
+            int plan = Math.min(uniqueDocIDs.size() - read,
+                    MAX_RECORDS_TO_READ_FROM_FORESTDB_AT_ONCE);
+            String[] ids = uniqueDocIDs.subList(read, read + plan).toArray(new String[plan]);
+            try {
+                DocumentIterator itr = forest.iterator(ids, iteratorFlags);
+                try {
+                    Document doc;
+                    while ((doc = itr.nextDocument()) != null) {
+                        try {
+                            String docID = doc.getDocID();
+                            List<Integer> entries = indexes.get(docID);
+                            if (entries == null)
+                                continue;
+                            for (int i : entries) {
+                                Status status = new Status(Status.NOT_FOUND);
+                                if (doc.exists())
+                                    revs[i] = revisionObject(doc, docID, revIDs.get(i),
+                                            withBody, status);
+                                if (outStatuses != null)
+                                    outStatuses[i] = status;
+                                loaded[i] = true;
+                            }
+                        } finally {
+                            doc.free();
+                        }
+                    }
+                } finally {
+                    itr.close();
+                }
+            } catch (ForestException e) {
+                // The whole chunk is read again after the backoff:
+                if (backoff.retry(e))
+                    continue;
+                Log.w(TAG, "Error in getDocuments(), loading remaining docs one by one", e);
+                break;
+            }
+            read += plan;
+        }
+
+        // Anything the iterators didn't return goes through the regular path:
+        for (int i = 0; i < count; i++) {
+            if (loaded[i])
+                continue;
+            Status status = new Status(Status.NOT_FOUND);
+            revs[i] = getDocument(docIDs.get(i), revIDs.get(i), withBody, status);
+            if (outStatuses != null)
+                outStatuses[i] = status;
+        }
+        return Arrays.asList(revs);
+    }
+
+    /**
+     * Selects the revision (or the current one if revID is null) and returns it, with the
+     * same rules as getDocument(String, String, boolean, Status).
+     */
+    private RevisionInternal revisionObject(Document doc,
+                                            String docID,
+                                            String revID,
+                                            boolean withBody,
+                                            Status outStatus) {
+        Map<String, Object> cached = null;
+        if (withBody && bodyCache != null && revID != null)
+            cached = bodyCache.get(docID, revID);
+        // No need to load the body if it is cached:
+        Status res = selectRev(doc, revID, withBody && cached == null);
+        outStatus.setCode(res.getCode());
+        if (outStatus.isError() && outStatus.getCode() != Status.GONE)
+            return null;
+        if (revID == null && doc.selectedRevDeleted()) {
+            outStatus.setCode(Status.DELETED);
+            return null;
+        }
+        if (!withBody || bodyCache == null || res.isError())
+            return ForestBridge.revisionObject(doc, docID, revID, withBody);
+
+        String selectedRevID = revID != null ? revID : doc.getSelectedRevID();
+        if (cached == null && revID == null)
+            cached = bodyCache.get(docID, selectedRevID);
+        if (cached != null) {
+            RevisionInternal rev = new RevisionInternal(docID, selectedRevID,
+                    doc.selectedRevDeleted());
+            rev.setSequence(doc.getSelectedSequence());
+            rev.setProperties(new HashMap<String, Object>(cached));
+            return rev;
+        }
+        RevisionInternal rev = ForestBridge.revisionObject(doc, docID, revID, true);
+        if (rev != null) {
+            Map<String, Object> properties = rev.getProperties();
+            if (properties != null)
+                bodyCache.put(docID, selectedRevID, properties);
+        }
+        return rev;
+    }
+
     private Document getDocument(String docID) {
         try {
             return _getDocument(docID);
@@ -344,6 +609,30 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
         }
     }
 
+    /**
+     * Returns the revision tree of the document, cached in revTrees for a short time, or null
+     * if the document doesn't exist.
+     */
+    private RevTreeCache.Tree getRevTree(String docID) {
+        RevTreeCache.Tree tree = revTrees.get(docID);
+        if (tree != null)
+            return tree;
+        long version = revTrees.getVersion();
+        Document doc = getDocument(docID);
+        if (doc == null)
+            return null;
+        try {
+            tree = RevTreeCache.Tree.load(doc, docID);
+        } catch (ForestException e) {
+            Log.e(TAG, "Error reading the revision tree of docID=%s", e, docID);
+            return null;
+        } finally {
+            doc.free();
+        }
+        revTrees.put(tree, version);
+        return tree;
+    }
+
     /**
      * @note return value should not be null.
      */
@@ -410,9 +699,18 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
         }
     }
 
-    // TODO: Set<String> ancestorRevIDs as additional parameter
     @Override
     public List<RevisionInternal> getRevisionHistory(RevisionInternal rev) {
+        return getRevisionHistory(rev, null);
+    }
+
+    /**
+     * Returns the revision and its ancestors, newest first, stopping at (and including) the
+     * first one in ancestorRevIDs, if not null.
+     */
+    public List<RevisionInternal> getRevisionHistory(RevisionInternal rev,
+                                                     Set<String> ancestorRevIDs) {
+        // Walks up from the revision instead of loading the whole tree.
         Document doc = getDocument(rev.getDocID());
         if (doc == null)
             return null;
@@ -432,9 +730,8 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
                     break;
                 ancestor.setMissing(!doc.hasRevisionBody());
                 history.add(ancestor);
-                // TODO: implement once ancestorRevIDs param is given.
-                //if(ancestorRevIDs!=null&&ancestorRevIDs.contains(ancestor.getRevID()))
-                //    break;
+                if (ancestorRevIDs != null && ancestorRevIDs.contains(ancestor.getRevID()))
+                    break;
             } while (doc.selectParentRev());
             return history;
         } finally {
@@ -442,26 +739,58 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
         }
     }
 
-    @Override
-    public RevisionList getAllRevisions(String docID, boolean onlyCurrent) {
+    /**
+     * Returns the revision IDs of a revision and of its ancestors, newest first, without
+     * creating a RevisionInternal for each. Stops at (and includes) the first revision found
+     * in ancestorRevIDs, if not null, or after maxLength revisions, if positive.
+     *
+     * @return the revision IDs, or null if the document or revision doesn't exist
+     */
+    public List<String> getRevisionHistoryIDs(String docID,
+                                              String revID,
+                                              Set<String> ancestorRevIDs,
+                                              int maxLength) {
+        // Walks up from the revision, reading only the revIDs needed.
         Document doc = getDocument(docID);
         if (doc == null)
             return null;
         try {
-            RevisionList revs = new RevisionList();
+            try {
+                if (!doc.selectRevID(revID, false))
+                    return null;
+            } catch (ForestException e) {
+                Log.e(TAG, "Error in getRevisionHistoryIDs() docID=%s revID=%s", e, docID, revID);
+                return null;
+            }
+            List<String> history = new ArrayList<String>();
             do {
-                if (onlyCurrent && !doc.selectedRevLeaf())
-                    continue;
-                RevisionInternal rev = ForestBridge.revisionObject(doc, docID, null, false);
-                if (rev != null)
-                    revs.add(rev);
-            } while (doc.selectNextRev());
-            return revs;
+                String ancestorRevID = doc.getSelectedRevID();
+                history.add(ancestorRevID);
+                if (ancestorRevIDs != null && ancestorRevIDs.contains(ancestorRevID))
+                    break;
+                if (maxLength > 0 && history.size() >= maxLength)
+                    break;
+            } while (doc.selectParentRev());
+            return history;
         } finally {
             doc.free();
         }
     }
 
+    @Override
+    public RevisionList getAllRevisions(String docID, boolean onlyCurrent) {
+        RevTreeCache.Tree tree = getRevTree(docID);
+        if (tree == null)
+            return null;
+        RevisionList revs = new RevisionList();
+        for (int i = 0; i < tree.size(); i++) {
+            if (onlyCurrent && !tree.isLeaf(i))
+                continue;
+            revs.add(tree.revisionObject(i));
+        }
+        return revs;
+    }
+
     @Override
     public List<String> getPossibleAncestorRevisionIDs(RevisionInternal rev,
                                                        int limit,
@@ -471,6 +800,30 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
         if (generation <= 1)
             return null;
 
+        // Without bodies, the cached rev tree has all the information needed:
+        if (!withBodiesOnly) {
+            RevTreeCache.Tree tree = getRevTree(rev.getDocID());
+            if (tree == null)
+                return null;
+            if (outHaveBodies != null) outHaveBodies.set(true);
+            List<String> revIDs = new ArrayList<String>();
+            for (int leaf = 1; leaf >= 0; --leaf) {
+                for (int i = 0; i < tree.size(); i++) {
+                    if (tree.isLeaf(i) == (leaf == 1) &&
+                            RevisionInternal.generationFromRevID(tree.revIDs[i]) < generation) {
+                        if (outHaveBodies != null && !tree.hasBodies[i])
+                            outHaveBodies.set(false);
+                        revIDs.add(tree.revIDs[i]);
+                        if (limit > 0 && revIDs.size() >= limit)
+                            break;
+                    }
+                }
+                if (revIDs.size() > 0)
+                    return revIDs;
+            }
+            return null;
+        }
+
         Document doc = getDocument(rev.getDocID());
         if (doc == null)
             return null;
@@ -520,42 +873,102 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
 
     @Override
     public int findMissingRevisions(RevisionList revs) {
-        int numRevisionsRemoved = 0;
         if (revs.size() == 0)
-            return numRevisionsRemoved;
-
-        RevisionList sortedRevs = (RevisionList) revs.clone();
-        sortedRevs.sortByDocID();
-
-        Document doc = null;
-        String lastDocID = null;
-        for (int i = 0; i < sortedRevs.size(); i++) {
-            RevisionInternal rev = sortedRevs.get(i);
-            if (!rev.getDocID().equals(lastDocID)) {
-                lastDocID = rev.getDocID();
-                if (doc != null)
-                    doc.free();
+            return 0;
+
+        // docID -> requested revisions of that doc
+        Map<String, List<RevisionInternal>> revsByDocID =
+                new HashMap<String, List<RevisionInternal>>();
+        for (RevisionInternal rev : revs) {
+            List<RevisionInternal> docRevs = revsByDocID.get(rev.getDocID());
+            if (docRevs == null) {
+                docRevs = new ArrayList<RevisionInternal>(1);
+                revsByDocID.put(rev.getDocID(), docRevs);
+            }
+            docRevs.add(rev);
+        }
+        List<String> docIDs = new ArrayList<String>(revsByDocID.keySet());
+        Collections.sort(docIDs);
+
+        // Revisions that exist, i.e. aren't missing:
+        Set<RevisionInternal> found = Collections.newSetFromMap(
+                new IdentityHashMap<RevisionInternal, Boolean>());
+
+        // Scan the docs in docID order, rather than looking each of them up:
+        int iteratorFlags = IteratorFlags.kDefault | IteratorFlags.kIncludeDeleted;
+        int read = 0;
+        try {
+            while (read < docIDs.size()) {
+                int plan = Math.min(docIDs.size() - read,
+                        MAX_RECORDS_TO_READ_FROM_FORESTDB_AT_ONCE);
+                String[] ids = docIDs.subList(read, read + plan).toArray(new String[plan]);
+                DocumentIterator itr = forest.iterator(ids, iteratorFlags);
                 try {
-                    doc = forest.getDocument(rev.getDocID(), true);
-                } catch (ForestException e) {
-                    Status status = ForestBridge.err2status(e);
+                    Document doc;
+                    while ((doc = itr.nextDocument()) != null) {
+                        try {
+                            if (doc.exists())
+                                findRevisions(doc, revsByDocID.get(doc.getDocID()), found);
+                        } finally {
+                            doc.free();
+                        }
+                    }
+                } finally {
+                    itr.close();
+                }
+                read += plan;
+            }
+        } catch (ForestException e) {
+            Log.w(TAG, "Error in findMissingRevisions(), looking up remaining docs one by one", e);
+            for (int i = read; i < docIDs.size(); i++) {
+                String docID = docIDs.get(i);
+                Document doc;
+                try {
+                    doc = forest.getDocument(docID, true);
+                } catch (ForestException fe) {
+                    Status status = ForestBridge.err2status(fe);
                     if (status.getCode() != Status.NOT_FOUND)
-                        Log.e(TAG, "Error in getDocument() docID=" + rev.getDocID(), e);
-                    doc = null;
+                        Log.e(TAG, "Error in getDocument() docID=" + docID, fe);
+                    continue;
+                }
+                try {
+                    findRevisions(doc, revsByDocID.get(docID), found);
+                } finally {
+                    doc.free();
                 }
             }
+        }
+
+        if (found.isEmpty())
+            return 0;
+        // Remove the revisions that aren't missing, in a single pass:
+        List<RevisionInternal> missing = new ArrayList<RevisionInternal>(revs.size() - found.size());
+        for (RevisionInternal rev : revs) {
+            if (!found.contains(rev))
+                missing.add(rev);
+        }
+        int numRevisionsRemoved = revs.size() - missing.size();
+        revs.clear();
+        revs.addAll(missing);
+        return numRevisionsRemoved;
+    }
+
+    /**
+     * Adds to outFound the revisions of docRevs that exist in doc.
+     */
+    private static void findRevisions(Document doc,
+                                      List<RevisionInternal> docRevs,
+                                      Set<RevisionInternal> outFound) {
+        if (docRevs == null)
+            return;
+        for (RevisionInternal rev : docRevs) {
             try {
-                if (doc != null && doc.selectRevID(rev.getRevID(), false)) {
-                    revs.remove(rev); // not missing, so remove from list
-                    numRevisionsRemoved += 1;
-                }
+                if (doc.selectRevID(rev.getRevID(), false))
+                    outFound.add(rev);
             } catch (ForestException e) {
                 // ignore
             }
         }
-        if (doc != null)
-            doc.free();
-        return numRevisionsRemoved;
     }
 
     @Override
@@ -570,6 +983,16 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
                 return RevisionInternal.CBLCompareRevIDs(id2, id1);
             }
         });
+        // Probing a few revIDs is cheaper than loading the tree, so only use it if cached:
+        RevTreeCache.Tree tree = revTrees.get(rev.getDocID());
+        if (tree != null) {
+            for (String possibleRevID : revIDs) {
+                if (Revision.generationFromRevID(possibleRevID) <= generation &&
+                        tree.indexOf(possibleRevID) >= 0)
+                    return possibleRevID;
+            }
+            return null;
+        }
         Document doc = getDocument(rev.getDocID());
         if (doc == null)
             return null;
@@ -596,216 +1019,139 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
     @Override
     public Set<BlobKey> findAllAttachmentKeys() throws CouchbaseLiteException {
         Set<BlobKey> keys = new HashSet<BlobKey>();
+        // Bodies are scanned for digests in batches; with several cores the batches are
+        // scanned on the worker pool while this thread keeps reading from ForestDB.
+        ExecutorService executor = null;
+        int window = 0;
+        if (ForestDBExecutor.getThreadCount() > 1) {
+            executor = ForestDBExecutor.get();
+            window = 2 * ForestDBExecutor.getThreadCount();
+        }
+        ArrayDeque<Future<List<String>>> pending = new ArrayDeque<Future<List<String>>>();
+        List<byte[]> bodies = new ArrayList<byte[]>(ATTACHMENT_SCAN_BATCH_SIZE);
         try {
             DocumentIterator itr = forest.iterator(null, null, 0, IteratorFlags.kDefault);
-            Document doc;
-            while ((doc = itr.nextDocument()) != null) {
-                try {
-                    if (!doc.hasAttachments() || (doc.deleted() && !doc.conflicted()))
-                        continue;
-                    // Since db is assumed to have just been compacted,
-                    // we know that non-current revisions
-                    // won't have any bodies. So only scan the current revs.
-                    do {
-                        if (doc.selectedRevHasAttachments()) {
-                            byte[] body = doc.getSelectedBody();
-                            if (body != null && body.length > 0) {
-                                Map<String, Object> props = getDocProperties(body);
-                                if (props != null && props.containsKey("_attachments")) {
-                                    Map<String, Object> attachments =
-                                            (Map<String, Object>) props.get("_attachments");
-                                    Iterator<String> itr2 = attachments.keySet().iterator();
-                                    while (itr2.hasNext()) {
-                                        String name = itr2.next();
-                                        Map<String, Object> attachment =
-                                                (Map<String, Object>) attachments.get(name);
-                                        if (attachment != null &&
-                                                attachment.containsKey("digest")) {
-                                            String digest = (String) attachment.get("digest");
-                                            if (digest != null) {
-                                                keys.add(new BlobKey(digest));
-                                            }
-                                        }
-                                    }
-                                }
+            try {
+                Document doc;
+                while ((doc = itr.nextDocument()) != null) {
+                    try {
+                        if (!doc.hasAttachments() || (doc.deleted() && !doc.conflicted()))
+                            continue;
+                        // Since db is assumed to have just been compacted,
+                        // we know that non-current revisions
+                        // won't have any bodies. So only scan the current revs.
+                        do {
+                            if (doc.selectedRevHasAttachments()) {
+                                byte[] body = doc.getSelectedBody();
+                                if (body != null && body.length > 0)
+                                    bodies.add(body);
                             }
-                        }
-                    } while (doc.selectNextLeaf(false, false));
-                } finally {
-                    doc.free();
+                        } while (doc.selectNextLeaf(false, false));
+                    } finally {
+                        doc.free();
+                    }
+                    if (bodies.size() >= ATTACHMENT_SCAN_BATCH_SIZE) {
+                        scanAttachmentDigests(bodies, executor, pending, keys);
+                        bodies = new ArrayList<byte[]>(ATTACHMENT_SCAN_BATCH_SIZE);
+                        while (pending.size() > window)
+                            addBlobKeys(getDigests(pending.poll()), keys);
+                    }
                 }
+            } finally {
+                itr.close();
             }
+            scanAttachmentDigests(bodies, executor, pending, keys);
+            while (!pending.isEmpty())
+                addBlobKeys(getDigests(pending.poll()), keys);
         } catch (ForestException e) {
             throw new CouchbaseLiteException(ForestBridge.err2status(e));
+        } finally {
+            for (Future<List<String>> digests : pending)
+                digests.cancel(false);
         }
         return keys;
     }
 
+    /**
+     * Finds the attachment digests in the bodies: on the executor if not null (the result is
+     * appended to pending), otherwise right away into keys.
+     */
+    private static void scanAttachmentDigests(final List<byte[]> bodies,
+                                              ExecutorService executor,
+                                              Queue<Future<List<String>>> pending,
+                                              Set<BlobKey> keys) {
+        if (bodies.isEmpty())
+            return;
+        if (executor == null) {
+            addBlobKeys(findAttachmentDigests(bodies), keys);
+            return;
+        }
+        pending.add(executor.submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return findAttachmentDigests(bodies);
+            }
+        }));
+    }
+
+    private static List<String> findAttachmentDigests(List<byte[]> bodies) {
+        List<String> digests = new ArrayList<String>();
+        for (byte[] body : bodies)
+            ForestBridge.findAttachmentDigests(body, digests);
+        return digests;
+    }
+
+    private static void addBlobKeys(List<String> digests, Set<BlobKey> keys) {
+        for (String digest : digests)
+            keys.add(new BlobKey(digest));
+    }
+
+    private static List<String> getDigests(Future<List<String>> digests)
+            throws CouchbaseLiteException {
+        try {
+            return digests.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CouchbaseLiteException(e, Status.UNKNOWN);
+        } catch (ExecutionException e) {
+            throw new CouchbaseLiteException(e.getCause(), Status.UNKNOWN);
+        }
+    }
+
     @Override
     public Map<String, Object> getAllDocs(QueryOptions options) throws CouchbaseLiteException {
-        Map<String, Object> result = new HashMap<String, Object>();
-        List<QueryRow> rows;
-
         if (options == null)
             options = new QueryOptions();
 
-        boolean includeDocs = (options.isIncludeDocs() ||
-                options.getPostFilter() != null ||
-                options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS);
-        boolean includeDeletedDocs = options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED;
-        int limit = options.getLimit();
-        int skip = options.getSkip();
-        Predicate<QueryRow> filter = options.getPostFilter();
-
-        int iteratorFlags = IteratorFlags.kDefault;
-        if (!includeDocs)
-            iteratorFlags &= ~IteratorFlags.kIncludeBodies;
-        if (options.isDescending())
-            iteratorFlags |= IteratorFlags.kDescending;
-        if (!options.isInclusiveStart())
-            iteratorFlags &= ~IteratorFlags.kInclusiveStart;
-        if (!options.isInclusiveEnd())
-            iteratorFlags &= ~IteratorFlags.kInclusiveEnd;
-        if (includeDeletedDocs)
-            iteratorFlags |= IteratorFlags.kIncludeDeleted;
-        // TODO: kCBLOnlyConflicts
-
-        if (options.getKeys() != null) {
-            rows = new ArrayList<QueryRow>();
-            iteratorFlags |= IteratorFlags.kIncludeDeleted;
-            int total = options.getKeys().size();
-            int read = 0;
-            while (total > read) { // loop till consume all requested docIDs
-                int plan = Math.min(total - read, MAX_RECORDS_TO_READ_FROM_FORESTDB_AT_ONCE);
-                String[] docIDs = options.getKeys().subList(read, read + plan).toArray(new String[plan]);
-                try {
-                    DocumentIterator itr = forest.iterator(docIDs, iteratorFlags);
-                    try {
-                        List<QueryRow> retRows = readFromIterator(itr, options, includeDocs, filter, limit);
-                        rows.addAll(retRows);
-                        limit -= retRows.size();
-                        read += plan; // number of attempted doc IDs as retRows.size() could be smaller than plan.
-                    } finally {
-                        if (itr != null)
-                            itr.close();
-                    }
-                } catch (ForestException e) {
-                    if (e.domain == ForestDBDomain && e.code == FDB_RESULT_HANDLE_BUSY) {
-                        Log.w(TAG, "ForestDB handle is busy, retry it after 300ms. error=%s", e.toString());
-                        try {
-                            Thread.sleep(300); // 300 ms
-                        } catch (InterruptedException ie) {
-                        }
-                        continue;
-                    } else {
-                        Log.e(TAG, "Error in getAllDocs()", e);
-                        return null;
-                    }
-                }
-            }
-        } else {
-            String startKey;
-            String endKey;
-            if (options.isDescending()) {
-                startKey = (String) View.keyForPrefixMatch(
-                        options.getStartKey(), options.getPrefixMatchLevel());
-                endKey = (String) options.getEndKey();
-            } else {
-                startKey = (String) options.getStartKey();
-                endKey = (String) View.keyForPrefixMatch(
-                        options.getEndKey(), options.getPrefixMatchLevel());
-            }
-            try {
-                DocumentIterator itr = forest.iterator(startKey, endKey, skip, iteratorFlags);
-                try {
-                    rows = readFromIterator(itr, options, includeDocs, filter, limit);
-                } finally {
-                    if (itr != null)
-                        itr.close();
-                }
-            } catch (ForestException e) {
-                Log.e(TAG, "Error in getAllDocs()", e);
-                return null;
-            }
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        AllDocsCursor cursor = getAllDocsCursor(options);
+        try {
+            QueryRow row;
+            while ((row = cursor.next()) != null)
+                rows.add(row);
+        } catch (CouchbaseLiteException e) {
+            return null;
+        } finally {
+            cursor.close();
         }
 
+        Map<String, Object> result = new HashMap<String, Object>();
         result.put("rows", rows);
         result.put("total_rows", rows.size());
         result.put("offset", options.getSkip());
         return result;
     }
 
-    private static List<QueryRow> readFromIterator(DocumentIterator itr,
-                                                   QueryOptions options,
-                                                   boolean includeDocs,
-                                                   Predicate<QueryRow> filter,
-                                                   int limit) throws ForestException {
-        List<QueryRow> rows = new ArrayList<QueryRow>();
-        Document doc;
-        while ((doc = itr.nextDocument()) != null) {
-            try {
-                String docID = doc.getDocID();
-                if (!doc.exists()) {
-                    Log.v(TAG, "AllDocs: No such row with key=\"%s\"", docID);
-                    QueryRow row = new QueryRow(null, 0, docID, null, null);
-                    rows.add(row);
-                    continue;
-                }
-
-                boolean deleted = doc.deleted();
-                if (deleted &&
-                        options.getAllDocsMode() != Query.AllDocsMode.INCLUDE_DELETED &&
-                        options.getKeys() == null)
-                    continue; // skip deleted doc
-                if (!doc.conflicted() &&
-                        options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS)
-                    continue; // skip non-conflicted doc
-
-                String revID = doc.getSelectedRevID();
-                long sequence = doc.getSelectedSequence();
-
-                RevisionInternal docRevision = null;
-                if (includeDocs) {
-                    // Fill in the document contents:
-                    docRevision = ForestBridge.revisionObject(doc, docID, revID, true);
-                    if (docRevision == null)
-                        Log.w(TAG, "AllDocs: Unable to read body of doc %s", docID);
-                }
-
-                List<String> conflicts = new ArrayList<String>();
-                if ((options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS
-                        || options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS)
-                        && doc.conflicted()) {
-                    conflicts = ForestBridge.getCurrentRevisionIDs(doc);
-                    if (conflicts != null && conflicts.size() == 1)
-                        conflicts = null;
-                }
-
-                Map<String, Object> value = new HashMap<String, Object>();
-                value.put("rev", revID);
-                if (deleted) // Note: In case of false, should not add for java
-                    value.put("deleted", (deleted ? true : null));
-                value.put("_conflicts", conflicts);// (not found in CouchDB)
-
-                QueryRow row = new QueryRow(docID,
-                        sequence,
-                        docID,
-                        value,
-                        docRevision);
-                if (filter != null && !filter.apply(row)) {
-                    Log.v(TAG, "   ... on 2nd thought, filter predicate skipped that row");
-                    continue;
-                }
-                rows.add(row);
-
-                if (limit > 0 && --limit == 0)
-                    break;
-            } finally {
-                if (doc != null)
-                    doc.free();
-            }
-        }
-        return rows;
+    /**
+     * Cursor-based variant of getAllDocs(): rows are read from ForestDB one at a time as
+     * AllDocsCursor.next() is called, so the caller can stop early and memory use doesn't
+     * grow with the number of documents. AllDocsCursor.getTotalRows() is the number of
+     * documents in the database. The cursor must be closed if it isn't read to the end.
+     */
+    public AllDocsCursor getAllDocsCursor(QueryOptions options) {
+        if (options == null)
+            options = new QueryOptions();
+        return new AllDocsCursor(forest, options, forest.getDocumentCount());
     }
 
     @Override
@@ -813,240 +1159,661 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
                                      ChangesOptions options,
                                      ReplicationFilter filter,
                                      Map<String, Object> filterParams) {
-        // http://wiki.apache.org/couchdb/HTTP_database_API#Changes
+        final RevisionList changes = new RevisionList();
+        try {
+            streamChangesSince(lastSequence, options, filter, filterParams, new ChangesCallback() {
+                @Override
+                public boolean onChange(RevisionInternal rev) {
+                    changes.add(rev);
+                    return true;
+                }
+            });
+        } catch (CouchbaseLiteException e) {
+            return null;
+        }
+        return changes;
+    }
+
+    /**
+     * Same as changesSince(), but hands each revision to the callback as soon as it is read
+     * instead of collecting them all in memory.
+     *
+     * @return the sequence to pass as lastSequence to get the following changes
+     * @throws CouchbaseLiteException if ForestDB fails; the revisions delivered so far are valid
+     */
+    public long streamChangesSince(long lastSequence,
+                                   ChangesOptions options,
+                                   ReplicationFilter filter,
+                                   Map<String, Object> filterParams,
+                                   ChangesCallback callback)
+            throws CouchbaseLiteException {
         if (options == null)
             options = new ChangesOptions();
+        long[] sequence = {lastSequence};
+        int[] limit = {options.getLimit()};
+        streamChanges(options, filter, filterParams, callback, sequence, limit);
+        return sequence[0];
+    }
 
-        boolean withBody = (options.isIncludeDocs() || filter != null);
-        int limit = options.getLimit();
-
-        RevisionList changes = new RevisionList();
+    /**
+     * Metadata-only variant of changesSince() without filter or bodies: returns the
+     * sequence, docID, revID, deleted and conflicted flags of the changed revisions in
+     * primitive arrays, reading each field of each document once, without creating any
+     * RevisionInternal. Documents are read without their bodies unless includeConflicts
+     * is set (the rev tree is needed to find the other leaves). The other leaves are only
+     * looked for in conflicted documents, so deleted branches of documents which aren't in
+     * conflict are not listed.
+     *
+     * @param limit maximum number of documents to read
+     * @throws CouchbaseLiteException if ForestDB fails
+     */
+    public ChangesBatch changesBatchSince(long lastSequence, int limit, boolean includeConflicts)
+            throws CouchbaseLiteException {
+        ChangesBatch batch = new ChangesBatch(lastSequence,
+                Math.min(limit, MAX_RECORDS_TO_READ_FROM_FORESTDB_AT_ONCE));
+        int iteratorFlags = IteratorFlags.kDefault | IteratorFlags.kIncludeDeleted;
+        if (!includeConflicts)
+            iteratorFlags &= ~IteratorFlags.kIncludeBodies;
         try {
-            int iteratorFlags = IteratorFlags.kDefault;
-            iteratorFlags |= IteratorFlags.kIncludeDeleted;
+            // Everything up to here is read once the iterator is exhausted (see streamChanges())
+            long lastSequenceToRead = forest.getLastSequence();
             DocumentIterator itr = forest.iterateChanges(lastSequence, iteratorFlags);
             try {
-                Document doc;
-                while (limit-- > 0 && (doc = itr.nextDocument()) != null) {
+                DocumentMetadata meta = new DocumentMetadata();
+                boolean exhausted = false;
+                while (limit-- > 0) {
+                    Document doc = itr.nextDocument();
+                    if (doc == null) {
+                        exhausted = true;
+                        break;
+                    }
                     try {
-                        Log.v(TAG, "[changesSince()] docID=%s seq=%d conflicted=%s",
-                                doc.getDocID(), doc.getSelectedSequence(), doc.conflicted());
-                        String docID = doc.getDocID();
-                        do {
-                            RevisionInternal rev = ForestBridge.revisionObject(
-                                    doc, docID, null, withBody);
-                            if (rev == null)
-                                return null;
-                            if (filter == null || delegate.runFilter(filter, filterParams, rev)) {
-                                if (!options.isIncludeDocs())
-                                    rev.setBody(null);
-                                changes.add(rev);
+                        meta.loadExisting(doc, true);
+                        batch.add(meta.sequence, meta.docID, meta.revID, meta.isDeleted(),
+                                meta.conflicted);
+                        if (includeConflicts && meta.conflicted) {
+                            while (doc.selectNextLeaf(true, false)) {
+                                meta.loadSelected(doc);
+                                batch.add(meta.sequence, meta.docID, meta.revID,
+                                        meta.isDeleted(), meta.conflicted);
                             }
                         }
-                        while (options.isIncludeConflicts() && doc.selectNextLeaf(true, withBody));
+                        // Resume after the document, not after its current revision (which
+                        // is older if a non-winning revision was added since):
+                        batch.setLastSequence(doc.getSequence());
                     } finally {
                         doc.free();
                     }
                 }
+                if (exhausted && lastSequenceToRead > batch.getLastSequence())
+                    batch.setLastSequence(lastSequenceToRead);
             } finally {
+                itr.close();
             }
         } catch (ForestException e) {
-            Log.e(TAG, "Error in changesSince()", e);
-            return null;
+            Log.e(TAG, "Error in changesBatchSince()", e);
+            throw new CouchbaseLiteException(ForestBridge.err2status(e).getCode());
+        }
+        return batch;
+    }
+
+    /**
+     * Continuous changes feed: delivers the changes after lastSequence to the callback, then
+     * waits for new ones to be committed and delivers them too, without polling.
+     * Returns when the callback returns false, the limit of the options is reached, no change
+     * is committed within timeoutMillis (if positive), the store is closed or the thread is
+     * interrupted.
+     *
+     * @return the sequence to pass as lastSequence to resume the feed
+     */
+    public long followChanges(long lastSequence,
+                              ChangesOptions options,
+                              ReplicationFilter filter,
+                              Map<String, Object> filterParams,
+                              ChangesCallback callback,
+                              long timeoutMillis)
+            throws CouchbaseLiteException {
+        if (options == null)
+            options = new ChangesOptions();
+        long[] sequence = {lastSequence};
+        int[] limit = {options.getLimit()};
+        while (streamChanges(options, filter, filterParams, callback, sequence, limit)
+                && limit[0] > 0) {
+            try {
+                if (waitForChanges(sequence[0], timeoutMillis) <= sequence[0])
+                    break; // timed out or closed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return sequence[0];
+    }
+
+    /**
+     * Blocks until a transaction commits a sequence greater than lastSequence, or until
+     * timeoutMillis elapse (if positive). Returns immediately if there are changes already.
+     *
+     * @return the current last sequence, which is not greater than lastSequence on timeout
+     */
+    public long waitForChanges(long lastSequence, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (commitMonitor) {
+            while (true) {
+                Database db = forest;
+                if (db == null)
+                    return lastSequence;
+                long sequence = db.getLastSequence();
+                if (sequence > lastSequence)
+                    return sequence;
+                long wait = 0;
+                if (timeoutMillis > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        return sequence;
+                }
+                commitMonitor.wait(wait);
+            }
+        }
+    }
+
+    /**
+     * Reads the changes after ioSequence[0], up to ioLimit[0] documents, and passes them to
+     * the callback. Updates ioSequence and ioLimit as it goes.
+     * <p/>
+     * ioSequence is the position of the iterator: the sequence of the last document read
+     * (whether or not its revisions passed the filter), not that of its current revision,
+     * which is lower if a non-winning revision was added since. Once all the changes are
+     * read, it is the last sequence of the database, which is higher than that of any
+     * document if the latest ones were purged.
+     *
+     * @return false if the callback asked to stop
+     */
+    private boolean streamChanges(ChangesOptions options,
+                                  final ReplicationFilter filter,
+                                  final Map<String, Object> filterParams,
+                                  ChangesCallback callback,
+                                  long[] ioSequence,
+                                  int[] ioLimit)
+            throws CouchbaseLiteException {
+        // http://wiki.apache.org/couchdb/HTTP_database_API#Changes
+        boolean withBody = (options.isIncludeDocs() || filter != null);
+
+        // With parallel filtering, up to PARALLEL_FILTER_WINDOW revisions are read ahead while
+        // the pool runs the filter on them; they are still delivered in sequence order.
+        ExecutorService executor = null;
+        int window = 0;
+        if (filter != null && parallelFilterEnabled && ForestDBExecutor.getThreadCount() > 1) {
+            executor = ForestDBExecutor.get();
+            window = PARALLEL_FILTER_WINDOW;
+        }
+        ArrayDeque<PendingChange> pending = new ArrayDeque<PendingChange>();
+        long lastSequenceToRead = 0;
+        boolean exhausted = false;
+        try {
+            try {
+                int iteratorFlags = IteratorFlags.kDefault;
+                iteratorFlags |= IteratorFlags.kIncludeDeleted;
+                // Rev trees are only needed for bodies and conflicts:
+                if (!withBody && !options.isIncludeConflicts())
+                    iteratorFlags &= ~IteratorFlags.kIncludeBodies;
+                lastSequenceToRead = forest.getLastSequence();
+                DocumentIterator itr = forest.iterateChanges(ioSequence[0], iteratorFlags);
+                try {
+                    DocumentMetadata meta = new DocumentMetadata();
+                    while (ioLimit[0] > 0) {
+                        Document doc = itr.nextDocument();
+                        if (doc == null) {
+                            exhausted = true;
+                            break;
+                        }
+                        ioLimit[0]--;
+                        try {
+                            meta.loadExisting(doc, false);
+                            String docID = meta.docID;
+                            long sequence = doc.getSequence();
+                            Log.v(TAG, "[changesSince()] docID=%s seq=%d", docID, sequence);
+                            boolean first = true;
+                            do {
+                                if (!first)
+                                    meta.loadSelected(doc);
+                                first = false;
+                                final RevisionInternal rev = ForestBridge.revisionObject(
+                                        doc, meta, withBody);
+                                if (rev == null) {
+                                    Log.e(TAG, "Error in changesSince(): can't read docID=%s",
+                                            docID);
+                                    throw new CouchbaseLiteException(Status.DB_ERROR);
+                                }
+                                Future<Boolean> passes = null;
+                                if (executor != null) {
+                                    passes = executor.submit(new Callable<Boolean>() {
+                                        @Override
+                                        public Boolean call() {
+                                            return delegate.runFilter(filter, filterParams, rev);
+                                        }
+                                    });
+                                }
+                                pending.add(new PendingChange(rev, sequence, passes));
+                                if (pending.size() > window &&
+                                        !deliverChange(pending.poll(), options, filter,
+                                                filterParams, callback, ioSequence))
+                                    return false;
+                            }
+                            while (options.isIncludeConflicts() &&
+                                    doc.selectNextLeaf(true, withBody));
+                        } finally {
+                            doc.free();
+                        }
+                    }
+                } finally {
+                    itr.close();
+                }
+            } catch (ForestException e) {
+                Log.e(TAG, "Error in changesSince()", e);
+                throw new CouchbaseLiteException(ForestBridge.err2status(e).getCode());
+            }
+            while (!pending.isEmpty()) {
+                if (!deliverChange(pending.poll(), options, filter, filterParams,
+                        callback, ioSequence))
+                    return false;
+            }
+            // Caught up: don't read the sequences of purged documents again and again
+            if (exhausted && lastSequenceToRead > ioSequence[0])
+                ioSequence[0] = lastSequenceToRead;
+            return true;
+        } finally {
+            // Stopped early: don't bother filtering the revisions read ahead
+            for (PendingChange change : pending) {
+                if (change.passes != null)
+                    change.passes.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Runs the filter on the revision (or gets the result computed by the pool), and passes
+     * it to the callback if it passes.
+     *
+     * @return false if the callback asked to stop
+     */
+    private boolean deliverChange(PendingChange change,
+                                  ChangesOptions options,
+                                  ReplicationFilter filter,
+                                  Map<String, Object> filterParams,
+                                  ChangesCallback callback,
+                                  long[] ioSequence)
+            throws CouchbaseLiteException {
+        RevisionInternal rev = change.rev;
+        boolean passes;
+        if (change.passes != null)
+            passes = getFilterResult(change.passes);
+        else
+            passes = (filter == null || delegate.runFilter(filter, filterParams, rev));
+        ioSequence[0] = change.sequence;
+        if (passes) {
+            if (!options.isIncludeDocs())
+                rev.setBody(null);
+            return callback.onChange(rev);
+        }
+        return true;
+    }
+
+    private static boolean getFilterResult(Future<Boolean> passes)
+            throws CouchbaseLiteException {
+        try {
+            return passes.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CouchbaseLiteException(e, Status.UNKNOWN);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new CouchbaseLiteException(cause, Status.CALLBACK_ERROR);
+        }
+    }
+
+    /**
+     * A revision read from the changes feed, with its filter result if computed by the pool.
+     */
+    private static class PendingChange {
+        final RevisionInternal rev;
+        final long sequence; // sequence of the document
+        final Future<Boolean> passes;
+
+        PendingChange(RevisionInternal rev, long sequence, Future<Boolean> passes) {
+            this.rev = rev;
+            this.sequence = sequence;
+            this.passes = passes;
         }
-        return changes;
     }
 
     ///////////////////////////////////////////////////////////////////////////
     // INSERTION / DELETION:
     ///////////////////////////////////////////////////////////////////////////
 
-    @Override
-    public RevisionInternal add(String inDocID,
-                                String inPrevRevID,
-                                Map<String, Object> properties,
-                                boolean deleting,
-                                boolean allowConflict,
-                                StorageValidation validationBlock,
-                                Status outStatus)
+    @Override
+    public RevisionInternal add(final String inDocID,
+                                final String inPrevRevID,
+                                final Map<String, Object> properties,
+                                final boolean deleting,
+                                final boolean allowConflict,
+                                final StorageValidation validationBlock,
+                                Status outStatus)
+            throws CouchbaseLiteException {
+        if (outStatus != null)
+            outStatus.setCode(Status.OK);
+
+        if (readOnly)
+            throw new CouchbaseLiteException(Status.FORBIDDEN);
+
+        final Status putStatus = outStatus != null ? outStatus : new Status(Status.OK);
+        final RevisionInternal[] putRev = new RevisionInternal[1];
+        final CouchbaseLiteException[] putError = new CouchbaseLiteException[1];
+        final List<DocumentChange> changes = new ArrayList<DocumentChange>(1);
+        final boolean[] transactionFailed = new boolean[1];
+
+        // TODO: need to implement JNI for c4doc_put()
+        groupableTransaction(new Task() {
+            @Override
+            public Status run() {
+                // (may run again with group commit)
+                putStatus.setCode(Status.OK);
+                putRev[0] = null;
+                putError[0] = null;
+                changes.clear();
+                try {
+                    putRev[0] = putRevision(inDocID, inPrevRevID, properties, null, deleting,
+                            allowConflict, validationBlock, putStatus, changes);
+                } catch (CouchbaseLiteException e) {
+                    putError[0] = e;
+                    return e.getCBLStatus();
+                }
+                return putStatus;
+            }
+        }, transactionFailed);
+        if (transactionFailed[0])
+            throw new CouchbaseLiteException(Status.DB_ERROR);
+        if (putError[0] != null)
+            throw putError[0];
+
+        for (DocumentChange change : changes)
+            delegate.databaseStorageChanged(change);
+        return putRev[0];
+    }
+
+    /**
+     * Adds many new revisions at once, in a single transaction. Each insertion is processed
+     * as by add(); the outcome for each is stored into it (see DocumentInsert.getStatus() and
+     * getRevision()), and a failed insertion doesn't prevent the others from being committed.
+     * JSON bodies are canonicalized on the worker pool before the transaction starts, and
+     * change notifications are posted once the transaction has been committed.
+     *
+     * @throws CouchbaseLiteException if the transaction can't be started or committed
+     */
+    public void addBatch(List<DocumentInsert> inserts,
+                         boolean allowConflict,
+                         StorageValidation validationBlock)
             throws CouchbaseLiteException {
-        if (outStatus != null)
-            outStatus.setCode(Status.OK);
-
         if (readOnly)
             throw new CouchbaseLiteException(Status.FORBIDDEN);
+        if (inserts.isEmpty())
+            return;
 
-        RevisionInternal putRev = null;
-        DocumentChange change = null;
+        List<Future<byte[]>> jsons = canonicalJSONInParallel(inserts);
+        List<DocumentChange> changes = new ArrayList<DocumentChange>(inserts.size());
 
-        // TODO: need to implement JNI for c4doc_put()
-        // TODO: use inTransaction(Task)
         if (!beginTransaction())
             throw new CouchbaseLiteException(Status.DB_ERROR);
+        boolean commit = false;
+        boolean committed = false;
         try {
-            String docID = inDocID;
-            String prevRevID = inPrevRevID;
+            for (int i = 0; i < inserts.size(); i++) {
+                DocumentInsert insert = inserts.get(i);
+                Status status = new Status(Status.OK);
+                RevisionInternal putRev = null;
+                try {
+                    byte[] json = jsons != null ? getJSON(jsons.get(i)) : null;
+                    putRev = putRevision(insert.getDocID(), insert.getPrevRevID(),
+                            insert.getProperties(), json, insert.isDeleting(), allowConflict,
+                            validationBlock, status, changes);
+                } catch (CouchbaseLiteException e) {
+                    status.setCode(e.getCBLStatus().getCode());
+                }
+                insert.setResult(putRev, status);
+            }
+            commit = true;
+        } finally {
+            // Roll back if something (e.g. the validation block) threw:
+            committed = endTransaction(commit);
+        }
+        if (!committed)
+            throw new CouchbaseLiteException(Status.DB_ERROR);
 
-            Document doc;
-            if (docID == null || docID.isEmpty())
-                docID = Misc.CreateUUID();
+        for (DocumentChange change : changes)
+            delegate.databaseStorageChanged(change);
+    }
 
-            try {
-                doc = forest.getDocument(docID, false);
-            } catch (ForestException e) {
-                Log.e(TAG, "ForestDB Error: getDocument(docID, false) docID=[%s]", e, docID);
-                throw new CouchbaseLiteException(Status.DB_ERROR);
-            }
+    /**
+     * Inserts a new revision; see add(). Must be called in a transaction. The DocumentChange
+     * is appended to outChanges, to be posted once the transaction is committed.
+     *
+     * @param inJSON canonical JSON of properties if already computed, else null
+     */
+    private RevisionInternal putRevision(String inDocID,
+                                         String inPrevRevID,
+                                         Map<String, Object> properties,
+                                         byte[] inJSON,
+                                         boolean deleting,
+                                         boolean allowConflict,
+                                         StorageValidation validationBlock,
+                                         Status outStatus,
+                                         List<DocumentChange> outChanges)
+            throws CouchbaseLiteException {
+        RevisionInternal putRev = null;
+        String docID = inDocID;
+        String prevRevID = inPrevRevID;
+        byte[] json = inJSON;
 
-            if (properties != null && properties.containsKey("_attachments")) {
-                Map<String, Object> attachments = (Map<String, Object>) properties.get("_attachments");
-                if (attachments != null) {
-                    // https://github.com/couchbase/couchbase-lite-net/issues/749
-                    // Need to ensure revpos is correct for a revision inserted on top of a deletion
-                    if (doc.deleted()) {
-                        Iterator<String> itr = attachments.keySet().iterator();
-                        while (itr.hasNext()) {
-                            String name = itr.next();
-                            Map<String, Object> metadata = (Map<String, Object>) attachments.get(name);
-                            if (metadata != null) {
-                                metadata.put("revpos", Revision.generationFromRevID(doc.getRevID()) + 1);
-                            }
+        Document doc;
+        if (docID == null || docID.isEmpty())
+            docID = Misc.CreateUUID();
+
+        try {
+            doc = forest.getDocument(docID, false);
+        } catch (ForestException e) {
+            Log.e(TAG, "ForestDB Error: getDocument(docID, false) docID=[%s]", e, docID);
+            throw new CouchbaseLiteException(Status.DB_ERROR);
+        }
+
+        if (properties != null && properties.containsKey("_attachments")) {
+            Map<String, Object> attachments = (Map<String, Object>) properties.get("_attachments");
+            if (attachments != null) {
+                // https://github.com/couchbase/couchbase-lite-net/issues/749
+                // Need to ensure revpos is correct for a revision inserted on top of a deletion
+                if (doc.deleted()) {
+                    Iterator<String> itr = attachments.keySet().iterator();
+                    while (itr.hasNext()) {
+                        String name = itr.next();
+                        Map<String, Object> metadata = (Map<String, Object>) attachments.get(name);
+                        if (metadata != null) {
+                            metadata.put("revpos", Revision.generationFromRevID(doc.getRevID()) + 1);
                         }
                     }
                 }
             }
+        }
 
-            byte[] json;
-            if (properties != null && properties.size() > 0) {
-                json = RevisionUtils.asCanonicalJSON(properties);
-                if (json == null)
-                    throw new CouchbaseLiteException(
-                            Status.BAD_JSON);
-            } else {
-                json = "{}".getBytes();
-            }
+        if (json == null)
+            json = canonicalJSON(properties);
+        if (json == null)
+            throw new CouchbaseLiteException(Status.BAD_JSON);
 
-            try {
-                if (prevRevID != null) {
-                    // Updating an existing revision; make sure it exists and is a leaf:
-                    try {
-                        if (!doc.selectRevID(prevRevID, false))
-                            throw new CouchbaseLiteException(Status.NOT_FOUND);
-                        if (!allowConflict && !doc.selectedRevLeaf())
-                            throw new CouchbaseLiteException(Status.CONFLICT);
-                    } catch (ForestException e) {
-                        Log.e(TAG, "ForestDB Error: selectRevID(prevRevID, false) prevRevID=[%s]",
-                                e, prevRevID);
-                        throw new CouchbaseLiteException(Status.DB_ERROR);
-                    }
-                } else {
-                    // No parent revision given:
-                    if (deleting) {
-                        // Didn't specify a revision to delete: NotFound or a Conflict, depending
-                        throw new CouchbaseLiteException(doc.exists() ?
-                                Status.CONFLICT : Status.NOT_FOUND);
-                    }
-                    // If doc exists, current rev must be in a deleted state or
-                    // there will be a conflict:
-                    if (doc.selectCurrentRev()) {
-                        if (doc.selectedRevDeleted()) {
-                            // New rev will be child of the tombstone:
-                            // (T0D0: Write a horror novel called "Child Of The Tombstone"!)
-                            prevRevID = doc.getSelectedRevID();
-                        } else {
-                            throw new CouchbaseLiteException(Status.CONFLICT);
-                        }
-                    }
+        try {
+            if (prevRevID != null) {
+                // Updating an existing revision; make sure it exists and is a leaf:
+                try {
+                    if (!doc.selectRevID(prevRevID, false))
+                        throw new CouchbaseLiteException(Status.NOT_FOUND);
+                    if (!allowConflict && !doc.selectedRevLeaf())
+                        throw new CouchbaseLiteException(Status.CONFLICT);
+                } catch (ForestException e) {
+                    Log.e(TAG, "ForestDB Error: selectRevID(prevRevID, false) prevRevID=[%s]",
+                            e, prevRevID);
+                    throw new CouchbaseLiteException(Status.DB_ERROR);
                 }
-
-                // Compute the new revID.
-                // (Can't be done earlier because prevRevID may have changed.)
-                String newRevID = delegate.generateRevID(json, deleting, prevRevID);
-                if (newRevID == null)
-                    // invalid previous revID (no numeric prefix)
-                    throw new CouchbaseLiteException(Status.BAD_ID);
-
-                // Create the new CBL_Revision:
-                putRev = new RevisionInternal(docID, newRevID, deleting);
-                if (properties != null) {
-                    properties.put("_id", docID);
-                    properties.put("_rev", newRevID);
-                    putRev.setProperties(properties);
+            } else {
+                // No parent revision given:
+                if (deleting) {
+                    // Didn't specify a revision to delete: NotFound or a Conflict, depending
+                    throw new CouchbaseLiteException(doc.exists() ?
+                            Status.CONFLICT : Status.NOT_FOUND);
                 }
-
-                // Run any validation blocks:
-                if (validationBlock != null) {
-                    // Fetch the previous revision and validate the new one against it:
-                    RevisionInternal prevRev = null;
-                    if (prevRevID != null)
-                        prevRev = new RevisionInternal(docID, prevRevID, doc.selectedRevDeleted());
-                    Status status = validationBlock.validate(putRev, prevRev, prevRevID);
-                    if (status.isError()) {
-                        outStatus.setCode(status.getCode());
-                        throw new CouchbaseLiteException(status);
+                // If doc exists, current rev must be in a deleted state or
+                // there will be a conflict:
+                if (doc.selectCurrentRev()) {
+                    if (doc.selectedRevDeleted()) {
+                        // New rev will be child of the tombstone:
+                        // (T0D0: Write a horror novel called "Child Of The Tombstone"!)
+                        prevRevID = doc.getSelectedRevID();
+                    } else {
+                        throw new CouchbaseLiteException(Status.CONFLICT);
                     }
                 }
+            }
 
-                try {
-                    if (doc.insertRevision(newRevID, json, deleting,
-                            putRev.getAttachments() != null, allowConflict)) {
-                        if (deleting)
-                            outStatus.setCode(Status.OK); // 200
-                        else
-                            outStatus.setCode(Status.CREATED); // 201 (created)
-                    } else
-                        outStatus.setCode(Status.OK); // 200 (already exists)
-                } catch (ForestException e) {
-                    Log.e(TAG, "Error in insertRevision()", e);
-                    throw new CouchbaseLiteException(e.code);
-                }
+            // Compute the new revID.
+            // (Can't be done earlier because prevRevID may have changed.)
+            String newRevID = delegate.generateRevID(json, deleting, prevRevID);
+            if (newRevID == null)
+                // invalid previous revID (no numeric prefix)
+                throw new CouchbaseLiteException(Status.BAD_ID);
+
+            // Create the new CBL_Revision:
+            putRev = new RevisionInternal(docID, newRevID, deleting);
+            if (properties != null) {
+                properties.put("_id", docID);
+                properties.put("_rev", newRevID);
+                putRev.setProperties(properties);
+            }
 
-                // Save the updated doc:
-                boolean isWinner;
-                try {
-                    isWinner = saveForest(doc, newRevID, properties);
-                } catch (ForestException e) {
-                    Log.e(TAG, "Error in saveForest()", e);
-                    throw new CouchbaseLiteException(Status.DB_ERROR);
+            // Run any validation blocks:
+            if (validationBlock != null) {
+                // Fetch the previous revision and validate the new one against it:
+                RevisionInternal prevRev = null;
+                if (prevRevID != null)
+                    prevRev = new RevisionInternal(docID, prevRevID, doc.selectedRevDeleted());
+                Status status = validationBlock.validate(putRev, prevRev, prevRevID);
+                if (status.isError()) {
+                    outStatus.setCode(status.getCode());
+                    throw new CouchbaseLiteException(status);
                 }
-                putRev.setSequence(doc.getSequence());
-                change = changeWithNewRevision(putRev, isWinner, doc, null);
-            } finally {
-                doc.free();
             }
-        } finally {
-            if (!endTransaction(outStatus.isSuccessful()))
+
+            try {
+                if (doc.insertRevision(newRevID, json, deleting,
+                        putRev.getAttachments() != null, allowConflict)) {
+                    if (deleting)
+                        outStatus.setCode(Status.OK); // 200
+                    else
+                        outStatus.setCode(Status.CREATED); // 201 (created)
+                } else
+                    outStatus.setCode(Status.OK); // 200 (already exists)
+            } catch (ForestException e) {
+                Log.e(TAG, "Error in insertRevision()", e);
+                throw new CouchbaseLiteException(e.code);
+            }
+
+            // Save the updated doc:
+            boolean isWinner;
+            try {
+                isWinner = saveForest(doc, newRevID, properties);
+            } catch (ForestException e) {
+                Log.e(TAG, "Error in saveForest()", e);
                 throw new CouchbaseLiteException(Status.DB_ERROR);
+            }
+            putRev.setSequence(doc.getSequence());
+            outChanges.add(changeWithNewRevision(putRev, isWinner, doc, null));
+        } finally {
+            doc.free();
         }
-
-        if (change != null)
-            delegate.databaseStorageChanged(change);
         return putRev;
     }
 
+    /**
+     * Canonical JSON body for the properties, or null if they can't be encoded.
+     */
+    private static byte[] canonicalJSON(Map<String, Object> properties) {
+        if (properties != null && properties.size() > 0)
+            return RevisionUtils.asCanonicalJSON(properties);
+        else
+            return "{}".getBytes();
+    }
+
+    /**
+     * Starts encoding the bodies of the insertions on the worker pool. Bodies with
+     * attachments are left out (null), as their "revpos" may still be adjusted by
+     * putRevision(). Returns null if the batch is too small to be worth it.
+     */
+    private static List<Future<byte[]>> canonicalJSONInParallel(List<DocumentInsert> inserts) {
+        if (ForestDBExecutor.getThreadCount() < 2 || inserts.size() < PARALLEL_JSON_MIN_BATCH)
+            return null;
+        ExecutorService executor = ForestDBExecutor.get();
+        List<Future<byte[]>> jsons = new ArrayList<Future<byte[]>>(inserts.size());
+        for (DocumentInsert insert : inserts) {
+            final Map<String, Object> properties = insert.getProperties();
+            if (properties != null && properties.containsKey("_attachments")) {
+                jsons.add(null);
+                continue;
+            }
+            jsons.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return canonicalJSON(properties);
+                }
+            }));
+        }
+        return jsons;
+    }
+
+    private static byte[] getJSON(Future<byte[]> json) throws CouchbaseLiteException {
+        if (json == null)
+            return null;
+        try {
+            byte[] result = json.get();
+            if (result == null)
+                throw new CouchbaseLiteException(Status.BAD_JSON);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CouchbaseLiteException(e, Status.UNKNOWN);
+        } catch (ExecutionException e) {
+            throw new CouchbaseLiteException(e.getCause(), Status.BAD_JSON);
+        }
+    }
+
+    /**
+     * Gets the document, waiting up to retry times 300ms in all while the handle is busy.
+     */
     private Document getDocumentWithRetry(String docID, boolean mustExist, int retry)
             throws ForestException {
 
-        ForestException ex = null;
-        for (int i = 0; i < retry; i++) {
+        HandleBusyBackoff backoff = new HandleBusyBackoff("getDocument()",
+                retry * HandleBusyBackoff.MAX_DELAY_MS);
+        while (true) {
             try {
-                Document doc = forest.getDocument(docID, mustExist);
-                return doc;
+                return forest.getDocument(docID, mustExist);
             } catch (ForestException fe) {
-                ex = fe;
-                if (fe.domain == ForestDBDomain && fe.code == FDB_RESULT_HANDLE_BUSY) {
-                    try {
-                        Thread.sleep(300); // 300ms
-                    } catch (InterruptedException e) {
-                    }
-                    continue;
-                } else {
+                if (!backoff.retry(fe)) {
+                    if (HandleBusyBackoff.isHandleBusy(fe))
+                        Log.e(TAG, "Retried for %dms. But keep failing ForestDB.getDocument() docID=%s",
+                                fe, retry * HandleBusyBackoff.MAX_DELAY_MS, docID);
                     throw fe;
                 }
             }
         }
-        Log.e(TAG, "Retried %s times. But keep failing ForestDB.getDocument() docID=%s", ex, retry, docID);
-        throw ex;
     }
 
     /**
@@ -1069,63 +1836,148 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
         final List<String> history = inHistory;
         final URL source = inSource;
 
-        final DocumentChange[] change = new DocumentChange[1];
+        final List<DocumentChange> changes = new ArrayList<DocumentChange>(1);
 
         // TODO: need to implement JNI for c4doc_put()
-        Status status = inTransaction(new Task() {
+        Status status = groupableTransaction(new Task() {
             @Override
             public Status run() {
-                try {
-                    // First get the CBForest doc:
-                    Document doc = getDocumentWithRetry(rev.getDocID(), false, 5);
-                    try {
-                        int common = doc.insertRevisionWithHistory(
-                                json,
-                                rev.isDeleted(),
-                                rev.getAttachments() != null,
-                                history.toArray(new String[history.size()]));
-                        if (common < 0)
-                            // generation numbers not in descending order
-                            return new Status(Status.BAD_REQUEST);
-                        else if (common == 0)
-                            // No-op: No new revisions were inserted.
-                            return new Status(Status.OK);
-                        // Validate against the common ancestor:
-                        if (validationBlock != null) {
-                            RevisionInternal prev = null;
-                            if (common < history.size()) {
-                                String revID = history.get(common);
-                                if (!doc.selectRevID(revID, false)) {
-                                    Log.w(TAG, "Unable to select RevID: " + revID);
-                                    return new Status(Status.BAD_REQUEST);
-                                }
-                                prev = new RevisionInternal(rev.getDocID(), revID, doc.deleted());
-                            }
-                            String parentRevID = (history.size() > 1) ? history.get(1) : null;
-                            Status status = validationBlock.validate(rev, prev, parentRevID);
-                            if (status.isError())
-                                return status;
-                        }
-                        // Save updated doc back to the database:
-                        boolean isWinner = saveForest(doc, history.get(0), rev.getProperties());
-                        rev.setSequence(doc.getSelectedSequence());
-                        change[0] = changeWithNewRevision(rev, isWinner, doc, source);
-                        return new Status(Status.CREATED);
-                    } finally {
-                        doc.free();
-                    }
-                } catch (ForestException e) {
-                    Log.e(TAG, "ForestDB Error: forceInsert()", e);
-                    return new Status(Status.UNKNOWN);
+                changes.clear(); // (may run again with group commit)
+                return forceInsertRevision(rev, json, history, validationBlock, source, changes);
+            }
+        });
+
+        for (DocumentChange change : changes)
+            delegate.databaseStorageChanged(change);
+
+        if (status.isError())
+            throw new CouchbaseLiteException(status.getCode());
+    }
+
+    /**
+     * Same as forceInsert() for many revisions at once: they are inserted in docID order in a
+     * single transaction, and the change notifications are posted after it is committed.
+     * A revision which can't be inserted doesn't prevent the others from being committed.
+     *
+     * @param inRevs      revisions to insert
+     * @param inHistories history of each revision, as for forceInsert()
+     * @return the status of each insertion, in the same order as inRevs
+     * (CREATED, OK if already present, or an error status)
+     * @throws CouchbaseLiteException if the transaction can't be started or committed
+     */
+    public List<Status> forceInsertBatch(List<RevisionInternal> inRevs,
+                                         List<List<String>> inHistories,
+                                         final StorageValidation validationBlock,
+                                         final URL source)
+            throws CouchbaseLiteException {
+        if (readOnly)
+            throw new CouchbaseLiteException(Status.FORBIDDEN);
+        if (inRevs.size() != inHistories.size())
+            throw new CouchbaseLiteException(Status.BAD_PARAM);
+
+        final int count = inRevs.size();
+        final RevisionInternal[] revs = new RevisionInternal[count];
+        final Status[] statuses = new Status[count];
+        final List<List<String>> histories = inHistories;
+        for (int i = 0; i < count; i++)
+            revs[i] = inRevs.get(i).copy();
+
+        // Process the revisions in docID order, so ForestDB is read & written sequentially:
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return revs[i1].getDocID().compareTo(revs[i2].getDocID());
+            }
+        });
+
+        final List<DocumentChange> changes = new ArrayList<DocumentChange>(count);
+        Status status = groupableTransaction(new Task() {
+            @Override
+            public Status run() {
+                changes.clear(); // (may run again with group commit)
+                for (int i : order) {
+                    byte[] json = revs[i].getJson();
+                    if (json == null)
+                        statuses[i] = new Status(Status.BAD_JSON);
+                    else
+                        statuses[i] = forceInsertRevision(revs[i], json, histories.get(i),
+                                validationBlock, source, changes);
                 }
+                return new Status(Status.OK);
             }
         });
+        if (status.isError()) {
+            // Nothing was committed:
+            changes.clear();
+            for (int i = 0; i < count; i++)
+                statuses[i] = status;
+        }
 
-        if (change[0] != null)
-            delegate.databaseStorageChanged(change[0]);
+        for (DocumentChange change : changes)
+            delegate.databaseStorageChanged(change);
 
         if (status.isError())
             throw new CouchbaseLiteException(status.getCode());
+        return Arrays.asList(statuses);
+    }
+
+    /**
+     * Inserts a revision with its history; see forceInsert(). Must be called in a
+     * transaction. The DocumentChange is appended to outChanges, to be posted once the
+     * transaction is committed.
+     */
+    private Status forceInsertRevision(RevisionInternal rev,
+                                       byte[] json,
+                                       List<String> history,
+                                       StorageValidation validationBlock,
+                                       URL source,
+                                       List<DocumentChange> outChanges) {
+        try {
+            // First get the CBForest doc:
+            Document doc = getDocumentWithRetry(rev.getDocID(), false, 5);
+            try {
+                int common = doc.insertRevisionWithHistory(
+                        json,
+                        rev.isDeleted(),
+                        rev.getAttachments() != null,
+                        history.toArray(new String[history.size()]));
+                if (common < 0)
+                    // generation numbers not in descending order
+                    return new Status(Status.BAD_REQUEST);
+                else if (common == 0)
+                    // No-op: No new revisions were inserted.
+                    return new Status(Status.OK);
+                // Validate against the common ancestor:
+                if (validationBlock != null) {
+                    RevisionInternal prev = null;
+                    if (common < history.size()) {
+                        String revID = history.get(common);
+                        if (!doc.selectRevID(revID, false)) {
+                            Log.w(TAG, "Unable to select RevID: " + revID);
+                            return new Status(Status.BAD_REQUEST);
+                        }
+                        prev = new RevisionInternal(rev.getDocID(), revID, doc.deleted());
+                    }
+                    String parentRevID = (history.size() > 1) ? history.get(1) : null;
+                    Status status = validationBlock.validate(rev, prev, parentRevID);
+                    if (status.isError())
+                        return status;
+                }
+                // Save updated doc back to the database:
+                boolean isWinner = saveForest(doc, history.get(0), rev.getProperties());
+                rev.setSequence(doc.getSelectedSequence());
+                outChanges.add(changeWithNewRevision(rev, isWinner, doc, source));
+                return new Status(Status.CREATED);
+            } finally {
+                doc.free();
+            }
+        } catch (ForestException e) {
+            Log.e(TAG, "ForestDB Error: forceInsert()", e);
+            return new Status(Status.UNKNOWN);
+        }
     }
 
     @Override
@@ -1175,6 +2027,9 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
                                 } catch (ForestException e) {
                                     return ForestBridge.err2status(e);
                                 }
+                                if (bodyCache != null)
+                                    bodyCache.remove(docID);
+                                revTrees.remove(docID);
                                 Log.v(TAG, "Purged doc '%s' revs '%s'", docID, revIDs);
                             }
                             revsPurged = purged;
@@ -1254,27 +2109,62 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
     }
 
     private void notifyPurgedDocument(String docID) {
+        if (bodyCache != null)
+            bodyCache.remove(docID);
+        revTrees.remove(docID);
         delegate.databaseStorageChanged(new DocumentChange(docID));
     }
 
 
+    /**
+     * View stores are kept in a registry, so the file system is only probed the first time a
+     * view is asked for.
+     */
     @Override
     public ViewStore getViewStorage(String name, boolean create) throws CouchbaseLiteException {
-        return new ForestDBViewStore(this, name, create);
+        synchronized (viewStores) {
+            ForestDBViewStore viewStore = viewStores.get(name);
+            if (viewStore == null) {
+                viewStore = new ForestDBViewStore(this, name, create);
+                viewStores.put(name, viewStore);
+                if (viewNames != null)
+                    viewNames.add(name);
+            }
+            return viewStore;
+        }
     }
 
+    /**
+     * The directory is only listed the first time; the result is then kept up to date as
+     * views are created and deleted through this store.
+     */
     @Override
     public List<String> getAllViewNames() {
-        List<String> result = new ArrayList<String>();
-        String[] fileNames = new File(directory).list();
-        for (String filename : fileNames) {
-            try {
-                result.add(ForestDBViewStore.fileNameToViewName(filename));
-            } catch (CouchbaseLiteException e) {
-                // ignore
+        synchronized (viewStores) {
+            if (viewNames == null) {
+                viewNames = new LinkedHashSet<String>();
+                String[] fileNames = new File(directory).list();
+                for (String filename : fileNames) {
+                    try {
+                        viewNames.add(ForestDBViewStore.fileNameToViewName(filename));
+                    } catch (CouchbaseLiteException e) {
+                        // ignore
+                    }
+                }
             }
+            return new ArrayList<String>(viewNames);
+        }
+    }
+
+    /**
+     * Called by a ForestDBViewStore when its files have been deleted.
+     */
+    void forgetViewStorage(String name) {
+        synchronized (viewStores) {
+            viewStores.remove(name);
+            if (viewNames != null)
+                viewNames.remove(name);
         }
-        return result;
     }
 
     @Override
@@ -1388,9 +2278,47 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
             doc.setType((String) properties.get("type"));
         // save
         doc.save(maxRevTreeDepth);
+        if (bodyCache != null)
+            bodyCache.remove(doc.getDocID());
+        revTrees.remove(doc.getDocID());
         return isWinner;
     }
 
+    /**
+     * Reads a record of a raw key store.
+     *
+     * @return meta and body, or null if there is no such record.
+     */
+    byte[][] getRawValue(String store, String key) {
+        try {
+            return forest.rawGet(store, key);
+        } catch (ForestException e) {
+            if (e.domain != ForestDBDomain || e.code != FDBErrors.FDB_RESULT_KEY_NOT_FOUND)
+                Log.w(TAG, "Error in rawGet() store=%s key=%s", e, store, key);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a record of a raw key store, in a transaction.
+     */
+    boolean setRawValue(final String store, final String key,
+                        final byte[] meta, final byte[] body) {
+        Status status = inTransaction(new Task() {
+            @Override
+            public Status run() {
+                try {
+                    forest.rawPut(store, key, meta, body);
+                    return new Status(Status.OK);
+                } catch (ForestException e) {
+                    Log.w(TAG, "Error in rawPut() store=%s key=%s", e, store, key);
+                    return ForestBridge.err2status(e);
+                }
+            }
+        });
+        return status.isSuccessful();
+    }
+
     private DocumentChange changeWithNewRevision(RevisionInternal inRev,
                                                  boolean isWinningRev,
                                                  Document doc,
@@ -1411,13 +2339,23 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
     }
 
     private boolean endTransaction(boolean commit) {
+        int level = transactionLevel4Thread.get() - 1;
         try {
-            transactionLevel4Thread.set(transactionLevel4Thread.get() - 1);
+            transactionLevel4Thread.set(level);
             forest.endTransaction(commit);
         } catch (ForestException e) {
             Log.e(TAG, "Failed to end transaction", e);
             return false;
         }
+        if (commit && level == 0) {
+            // Wake up the changes feeds waiting for new sequences:
+            synchronized (commitMonitor) {
+                commitMonitor.notifyAll();
+            }
+        } else if (!commit) {
+            // Trees read during the transaction may show revisions that were rolled back:
+            revTrees.clear();
+        }
         delegate.storageExitedTransaction(commit);
         return true;
     }
@@ -1554,21 +2492,206 @@ public class ForestDBStore implements Store, EncryptableStore, Constants {
         Status run();
     }
 
+    /**
+     * Runs the task in a transaction, unless already in one. The transaction is committed
+     * unless the task returns an error status.
+     *
+     * @return the status returned by the task, or a new DB_ERROR status if the transaction
+     * couldn't be started or committed
+     */
     private Status inTransaction(Task task) {
         if (inTransaction())
             return task.run();
-        else {
-            if (!beginTransaction())
+        else
+            return runTransaction(task, null);
+    }
+
+    private Status groupableTransaction(Task task) {
+        return groupableTransaction(task, null);
+    }
+
+    /**
+     * Same as inTransaction(Task), but a top-level transaction may be grouped with those of
+     * other threads when group commit is enabled. Only for the store's own document writes,
+     * whose tasks can safely be run again on another thread, see setGroupCommitEnabled().
+     *
+     * @param outTransactionFailed if not null, its first element is set to true when the
+     *                             returned status isn't the task's, because the transaction
+     *                             couldn't be started or committed
+     */
+    private Status groupableTransaction(Task task, boolean[] outTransactionFailed) {
+        if (inTransaction())
+            return task.run();
+        else if (groupCommitEnabled)
+            return groupCommit(task, outTransactionFailed);
+        else
+            return runTransaction(task, outTransactionFailed);
+    }
+
+    private Status runTransaction(Task task, boolean[] outTransactionFailed) {
+        if (!beginTransaction()) {
+            if (outTransactionFailed != null)
+                outTransactionFailed[0] = true;
+            return new Status(Status.DB_ERROR);
+        }
+        boolean commit = false;
+        try {
+            Status status = task.run();
+            commit = !status.isError();
+            return status;
+        } finally {
+            if (!endTransaction(commit)) {
+                if (outTransactionFailed != null)
+                    outTransactionFailed[0] = true;
                 return new Status(Status.DB_ERROR);
-            boolean commit = false;
+            }
+        }
+    }
+
+    /**
+     * Runs a top-level transaction with those of other threads, see setGroupCommitEnabled().
+     * A thread arriving when there is no group leader becomes the leader: it runs all the
+     * queued tasks (at least its own) right away. Threads arriving meanwhile queue their task
+     * and wait until a leader has run it, or until there is no leader anymore and one of them
+     * becomes the next leader, taking everything queued during the previous commit.
+     * Exceptions thrown by the task are rethrown on the calling thread.
+     */
+    private Status groupCommit(Task task, boolean[] outTransactionFailed) {
+        GroupedTask grouped = new GroupedTask(task);
+        boolean interrupted = false;
+        boolean leader;
+        synchronized (groupLock) {
+            groupQueue.add(grouped);
+            while (!grouped.done && groupLeaderActive) {
+                try {
+                    groupLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            leader = !grouped.done;
+            if (leader)
+                groupLeaderActive = true;
+        }
+
+        if (leader) {
+            // Our task is still queued, so it will be part of this group:
+            List<GroupedTask> group = null;
             try {
-                Status status = task.run();
-                commit = !status.isError();
-                return status;
+                synchronized (groupLock) {
+                    group = new ArrayList<GroupedTask>(groupQueue);
+                    groupQueue.clear();
+                }
+                runGroup(group);
             } finally {
-                if (!endTransaction(commit))
-                    return new Status(Status.DB_ERROR);
+                synchronized (groupLock) {
+                    if (group != null) {
+                        for (GroupedTask t : group)
+                            t.done = true;
+                    }
+                    groupLeaderActive = false;
+                    groupLock.notifyAll();
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        Status status = grouped.getResult();
+        if (outTransactionFailed != null && grouped.transactionFailed)
+            outTransactionFailed[0] = true;
+        return status;
+    }
+
+    /**
+     * Runs the tasks of a group in one transaction. ForestDB has no savepoints to roll back a
+     * single task, so when one fails the whole transaction is rolled back. The failed task
+     * keeps its error status, as it wouldn't have committed anything on its own, and all the
+     * other tasks of the group, those which ran before it included, are run again together in
+     * a new transaction. This repeats until a transaction commits, so each failure costs a
+     * rollback and a re-run of the others, not a commit per task.
+     */
+    private void runGroup(List<GroupedTask> group) {
+        List<GroupedTask> pending = new ArrayList<GroupedTask>(group);
+        while (!pending.isEmpty()) {
+            if (!beginTransaction()) {
+                for (GroupedTask t : pending)
+                    t.fail();
+                return;
+            }
+            GroupedTask failed = null;
+            for (GroupedTask t : pending) {
+                if (t.run().isError()) {
+                    failed = t;
+                    break;
+                }
             }
+            if (!endTransaction(failed == null)) {
+                // Nothing was committed; either way the tasks can't succeed:
+                for (GroupedTask t : pending) {
+                    if (t != failed)
+                        t.fail();
+                }
+                return;
+            }
+            if (failed == null)
+                return;
+            pending.remove(failed);
+            if (!pending.isEmpty())
+                Log.v(TAG, "Group transaction rolled back, running the %d others again",
+                        pending.size());
+        }
+    }
+
+    /**
+     * A task queued for group commit, with the outcome of its last run.
+     */
+    private static class GroupedTask implements Task {
+        private final Task task;
+        private Status status = null;
+        private RuntimeException exception = null;
+        private Error error = null;
+        private boolean transactionFailed = false;
+        private boolean done = false; // guarded by ForestDBStore.groupLock
+
+        GroupedTask(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public Status run() {
+            exception = null;
+            error = null;
+            try {
+                status = task.run();
+            } catch (RuntimeException e) {
+                exception = e;
+                status = new Status(Status.CALLBACK_ERROR);
+            } catch (Error e) {
+                error = e;
+                status = new Status(Status.CALLBACK_ERROR);
+            }
+            return status;
+        }
+
+        /**
+         * Records that the transaction couldn't be started or committed.
+         */
+        void fail() {
+            status = new Status(Status.DB_ERROR);
+            transactionFailed = true;
+            exception = null;
+            error = null;
+        }
+
+        Status getResult() {
+            if (exception != null)
+                throw exception;
+            if (error != null)
+                throw error;
+            if (status == null) // the leader gave up before running it
+                fail();
+            return status;
         }
     }
 }
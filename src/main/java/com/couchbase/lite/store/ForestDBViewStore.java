@@ -45,10 +45,18 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -61,11 +69,43 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
     // Close the index db after it's inactive this many seconds
     private static final Float kCloseDelay = 60.0f;
 
+    // see setCloseDelay()
+    private static volatile float closeDelay = kCloseDelay;
+
     private static final int REDUCE_BATCH_SIZE = 100;
 
+    // Number of documents whose map calls are handed to the worker pool at once
+    private static final int PARALLEL_MAP_BATCH_SIZE = 64;
+
+    // Placeholder map block for documents whose old rows just have to be removed
+    private static final Mapper kEmitNothing = new Mapper() {
+        @Override
+        public void map(Map<String, Object> document, Emitter emitter) {
+        }
+    };
+
+    // see setParallelMapEnabled()
+    private static volatile boolean parallelMapEnabled = false;
+
+    // see setIncrementalReduceEnabled()
+    private static volatile boolean incrementalReduceEnabled = false;
+
+    // Maximum number of reduced query results cached per view
+    private static final int REDUCE_CACHE_SIZE = 20;
+
+    // Raw key store of the database holding the persisted reduce cache, one record per view
+    private static final String kReduceCacheStore = "_reducecache";
+
+    // see setReduceCacheEnabled() and setReduceCachePersistent()
+    private static volatile boolean reduceCacheEnabled = false;
+    private static volatile boolean reduceCachePersistent = false;
+
     // lock for updateIndexes method
     private final Object lockUpdateIndexes = new Object();
 
+    // lock for opening/closing _view, and for _indexing/_readers/_closePending
+    private final Object lockIndex = new Object();
+
     ///////////////////////////////////////////////////////////////////////////
     // ForestDBViewStore
     ///////////////////////////////////////////////////////////////////////////
@@ -77,7 +117,106 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
     // private
     private ForestDBStore _dbStore;
     private String _path;
-    private View _view;
+    private volatile View _view;
+    // number of updateIndexes() calls currently writing to _view
+    private int _indexing = 0;
+    // closeIndex() was called while indexing or reading
+    private boolean _closePending = false;
+    // number of open query iterators and scans on _view
+    private int _readers = 0;
+    // last time _view was used
+    private volatile long _lastAccess = 0;
+    // pending check to close _view once idle
+    private ScheduledFuture<?> _idleCloseTask = null;
+    // reduce cache key -> last reduced rows for it (LRU)
+    private final Map<String, CachedReduce> reduceCache =
+            new LinkedHashMap<String, CachedReduce>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedReduce> eldest) {
+                    return size() > REDUCE_CACHE_SIZE;
+                }
+            };
+    // persisted reduce cache was read into reduceCache. Guarded by reduceCache.
+    private boolean reduceCacheLoaded = false;
+    // reduceCache has entries which aren't persisted yet. Guarded by reduceCache.
+    private boolean reduceCacheDirty = false;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Configuration
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * If enabled, updateIndexes() runs the map functions for batches of documents on a worker
+     * pool sized to the number of available processors. The emitted rows are still sent to
+     * the Indexer in sequence order, so the resulting index is the same as with serial
+     * indexing. Map functions must be thread-safe and must not modify the document
+     * properties they are given. Disabled by default.
+     */
+    public static void setParallelMapEnabled(boolean enabled) {
+        parallelMapEnabled = enabled;
+    }
+
+    public static boolean isParallelMapEnabled() {
+        return parallelMapEnabled;
+    }
+
+    /**
+     * Sets how many seconds a view index may stay unused before its ForestDB file is closed,
+     * releasing its file handle and buffer cache. It is reopened on next use. A value of 0 or
+     * less keeps indexes open until the view store is closed. Defaults to 60 seconds.
+     */
+    public static void setCloseDelay(float seconds) {
+        closeDelay = seconds;
+    }
+
+    public static float getCloseDelay() {
+        return closeDelay;
+    }
+
+    /**
+     * If enabled, reducedQuery() calls the reduce block for every REDUCE_BATCH_SIZE rows of a
+     * group, and combines the partial results by calling it again with rereduce=true (and
+     * null keys), as CouchDB does. Memory used by a reduce then no longer grows with the size
+     * of the group. The reduce block must handle rereduce correctly; a block which, for
+     * example, returns values.size() regardless of rereduce would give wrong results.
+     * Disabled by default.
+     */
+    public static void setIncrementalReduceEnabled(boolean enabled) {
+        incrementalReduceEnabled = enabled;
+    }
+
+    public static boolean isIncrementalReduceEnabled() {
+        return incrementalReduceEnabled;
+    }
+
+    /**
+     * If enabled, reducedQuery() remembers the result of the last REDUCE_CACHE_SIZE distinct
+     * queries per view and returns it again, without scanning the index, as long as neither
+     * the view's lastSequenceIndexed nor its map version has changed. Cached rows are kept as
+     * JSON, so the values returned by a cache hit are those of the reduced values decoded from
+     * JSON: numbers may come back as a narrower type, and other objects as maps. Disabled by
+     * default.
+     */
+    public static void setReduceCacheEnabled(boolean enabled) {
+        reduceCacheEnabled = enabled;
+    }
+
+    public static boolean isReduceCacheEnabled() {
+        return reduceCacheEnabled;
+    }
+
+    /**
+     * If enabled, the reduce cache of a view is written to a raw key store of the database
+     * when the view store is closed, and read back the first time it is needed, so that it
+     * survives closing and reopening the database. Disabled by default.
+     */
+    public static void setReduceCachePersistent(boolean persistent) {
+        reduceCachePersistent = persistent;
+    }
+
+    public static boolean isReduceCachePersistent() {
+        return reduceCachePersistent;
+    }
 
     ///////////////////////////////////////////////////////////////////////////
     // Constructor
@@ -156,62 +295,78 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
 
     @Override
     public void close() {
-        closeIndex();
+        saveReduceCache();
+        // The database is closed next, so don't leave the index open under an indexer:
+        closeIndex(true);
     }
 
     @Override
     public void deleteIndex() {
-        if (_view != null) {
-            try {
-                _view.eraseIndex();
-            } catch (ForestException e) {
-                Log.e(TAG, "Failed to eraseIndex: " + _view);
-            }
+        clearReduceCache();
+        // The index is usually closed when idle, so open it to erase it:
+        try {
+            beginReading();
+        } catch (ForestException e) {
+            Log.e(TAG, "Failed to open index to erase it: " + name, e);
+            return;
+        }
+        try {
+            _view.eraseIndex();
+        } catch (ForestException e) {
+            Log.e(TAG, "Failed to eraseIndex: " + _view);
+        } finally {
+            endReading();
         }
     }
 
     @Override
     public void deleteView() {
+        clearReduceCache();
         deleteViewFiles();
+        _dbStore.forgetViewStorage(name);
     }
 
     @Override
     public boolean setVersion(String version) {
+        // (cached reductions carry the map version they were computed with)
         closeIndex();
         return true;
     }
 
     @Override
     public int getTotalRows() {
+        View view;
         try {
-            openIndex();
+            view = openIndex();
         } catch (ForestException e) {
             Log.e(TAG, "Exception opening index while getting total rows", e);
             return 0;
         }
-        return (int) _view.getTotalRows();
+        return (int) view.getTotalRows();
     }
 
     @Override
     public long getLastSequenceIndexed() {
+        View view;
         try {
-            openIndex(); // in case the _mapVersion changed, invalidating the _view
+            view = openIndex(); // in case the _mapVersion changed, invalidating the _view
         } catch (ForestException e) {
             Log.e(TAG, "Exception opening index while getting last sequence indexed", e);
             return -1;
         }
-        return _view.getLastSequenceIndexed();
+        return view.getLastSequenceIndexed();
     }
 
     @Override
     public long getLastSequenceChangedAt() {
+        View view;
         try {
-            openIndex(); // in case the _mapVersion changed, invalidating the _view
+            view = openIndex(); // in case the _mapVersion changed, invalidating the _view
         } catch (ForestException e) {
             Log.e(TAG, "Exception opening index while getting last sequence changed at", e);
             return -1;
         }
-        return _view.getLastSequenceChangedAt();
+        return view.getLastSequenceChangedAt();
     }
 
     /**
@@ -228,6 +383,8 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
                 inputViews.add(this);
 
             final ArrayList<View> views = new ArrayList<View>(inputViews.size());
+            final ArrayList<ForestDBViewStore> viewStores =
+                    new ArrayList<ForestDBViewStore>(inputViews.size());
             final ArrayList<Mapper> mapBlocks = new ArrayList<Mapper>(inputViews.size());
             final ArrayList<String> docTypes = new ArrayList<String>(inputViews.size());
             boolean useDocType = false;
@@ -239,12 +396,15 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
                     Log.v(Log.TAG_VIEW, "    %s has no map block; skipping it", view.getName());
                     continue;
                 }
+                View index;
                 try {
-                    view.openIndex();
+                    index = view.beginIndexing();
                 } catch (ForestException e) {
+                    endIndexing(viewStores);
                     throw new CouchbaseLiteException(ForestBridge.err2status(e));
                 }
-                views.add(view._view);
+                views.add(index);
+                viewStores.add(view);
                 mapBlocks.add(map);
                 String docType = delegate.getDocumentType();
                 docTypes.add(docType);
@@ -253,6 +413,7 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
             }
 
             if (views.size() == 0) {
+                endIndexing(viewStores);
                 Log.v(TAG, "    No input views to update the index");
                 return new Status(Status.NOT_MODIFIED);
             }
@@ -274,46 +435,10 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
                         throw new CouchbaseLiteException(ForestBridge.err2status(e));
                 }
                 // Now enumerate the docs:
-                Document doc;
-                while ((doc = itr.nextDocument()) != null) {
-                    // For each updated document:
-                    try {
-                        String docType = useDocType ? doc.getType() : null;
-                        // Skip design docs
-                        boolean validDocToIndex =
-                                !doc.deleted() && !doc.getDocID().startsWith("_design/");
-                        // Read the document body:
-                        Map<String, Object> body = ForestBridge.bodyOfSelectedRevision(doc);
-                        body.put("_id", doc.getDocID());
-                        body.put("_rev", doc.getRevID());
-                        body.put("_local_seq", doc.getSequence());
-                        if (doc.conflicted()) {
-                            List<String> currentRevIDs = ForestBridge.getCurrentRevisionIDs(doc);
-                            if (currentRevIDs != null && currentRevIDs.size() > 1)
-                                body.put("_conflicts",
-                                        currentRevIDs.subList(1, currentRevIDs.size()));
-                        }
-                        // Feed it to each view's map function:
-                        for (int viewNumber = 0; viewNumber < views.size(); viewNumber++) {
-                            if (!indexer.shouldIndex(doc, viewNumber))
-                                continue;
-
-                            boolean indexIt = validDocToIndex;
-                            if (indexIt && useDocType) {
-                                String viewDocType = docTypes.get(viewNumber);
-                                if (viewDocType != null)
-                                    indexIt = viewDocType.equals(docType);
-                            }
-
-                            if (indexIt)
-                                emit(indexer, viewNumber, doc, body, mapBlocks.get(viewNumber));
-                            else
-                                emit(indexer, viewNumber, doc, body, null);
-                        }
-                    } finally {
-                        doc.free();
-                    }
-                }
+                if (parallelMapEnabled && ForestDBExecutor.getThreadCount() > 1)
+                    indexDocumentsInParallel(indexer, itr, mapBlocks, docTypes, useDocType);
+                else
+                    indexDocuments(indexer, itr, mapBlocks, docTypes, useDocType);
                 success = true;
             } catch (ForestException e) {
                 throw new CouchbaseLiteException(ForestBridge.err2status(e));
@@ -327,52 +452,286 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
                             throw new CouchbaseLiteException(ForestBridge.err2status(ex));
                     }
                 }
+                endIndexing(viewStores);
             }
             Log.v(TAG, "... Finished re-indexing (%s)", viewNames(inputViews));
             return new Status(Status.OK);
         }
     }
 
-    private void emit(Indexer indexer, int viewNumber, Document doc,
-                      Map<String, Object> properties, Mapper mapper)
+    /**
+     * Feeds each document from the iterator to the map functions, one after another,
+     * on the calling thread.
+     */
+    private static void indexDocuments(Indexer indexer,
+                                       DocumentIterator itr,
+                                       List<Mapper> mapBlocks,
+                                       List<String> docTypes,
+                                       boolean useDocType)
             throws ForestException, CouchbaseLiteException {
-        final List<Object> keys = new ArrayList<Object>();
-        final List<byte[]> values = new ArrayList<byte[]>();
-        if (mapper != null) {
+        Document doc;
+        while ((doc = itr.nextDocument()) != null) {
+            // For each updated document:
             try {
-                // Set up the emit block:
-                mapper.map(properties, new Emitter() {
-                    @Override
-                    public void emit(Object key, Object value) {
-                        if (key == null) {
-                            Log.w(Log.TAG_VIEW, "emit() called with nil key; ignoring");
-                            return;
-                        }
-                        try {
-                            byte[] json = Manager.getObjectMapper().writeValueAsBytes(value);
-                            keys.add(key);
-                            values.add(json);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error in obj -> json", e);
-                            throw new RuntimeException(e);
+                Mapper[] mappers = mappersForDocument(indexer, doc, mapBlocks, docTypes,
+                        useDocType);
+                Map<String, Object> body = bodyForIndexing(doc);
+                // Feed it to each view's map function:
+                for (int viewNumber = 0; viewNumber < mappers.length; viewNumber++) {
+                    if (mappers[viewNumber] == null)
+                        continue;
+                    EmittedRows rows = map(mappers[viewNumber], body);
+                    indexer.emit(doc, viewNumber, rows.keys, rows.values);
+                }
+            } finally {
+                doc.free();
+            }
+        }
+    }
+
+    /**
+     * Same as indexDocuments(), but runs the map functions for a batch of documents on the
+     * worker pool. All cbforest calls stay on the calling thread, and the emitted rows are
+     * handed to the Indexer in sequence order, so the resulting index is identical to the
+     * one built by indexDocuments().
+     */
+    private static void indexDocumentsInParallel(Indexer indexer,
+                                                 DocumentIterator itr,
+                                                 List<Mapper> mapBlocks,
+                                                 List<String> docTypes,
+                                                 boolean useDocType)
+            throws ForestException, CouchbaseLiteException {
+        ExecutorService executor = ForestDBExecutor.get();
+        int nViews = mapBlocks.size();
+        List<Document> docs = new ArrayList<Document>(PARALLEL_MAP_BATCH_SIZE);
+        List<List<Future<EmittedRows>>> results =
+                new ArrayList<List<Future<EmittedRows>>>(PARALLEL_MAP_BATCH_SIZE);
+        boolean done = false;
+        while (!done) {
+            try {
+                // Read a batch of documents and queue up their map calls:
+                Document doc;
+                while (docs.size() < PARALLEL_MAP_BATCH_SIZE &&
+                        (doc = itr.nextDocument()) != null) {
+                    docs.add(doc);
+                    Mapper[] mappers = mappersForDocument(indexer, doc, mapBlocks, docTypes,
+                            useDocType);
+                    final Map<String, Object> body = bodyForIndexing(doc);
+                    List<Future<EmittedRows>> docResults =
+                            new ArrayList<Future<EmittedRows>>(nViews);
+                    for (int viewNumber = 0; viewNumber < nViews; viewNumber++) {
+                        final Mapper mapper = mappers[viewNumber];
+                        if (mapper == null || mapper == kEmitNothing) {
+                            docResults.add(mapper == null ? null :
+                                    new CompletedFuture<EmittedRows>(EmittedRows.EMPTY));
+                            continue;
                         }
+                        docResults.add(executor.submit(new Callable<EmittedRows>() {
+                            @Override
+                            public EmittedRows call() throws Exception {
+                                return map(mapper, body);
+                            }
+                        }));
+                    }
+                    results.add(docResults);
+                }
+                done = docs.size() < PARALLEL_MAP_BATCH_SIZE;
+
+                // Emit the rows in sequence order:
+                for (int i = 0; i < docs.size(); i++) {
+                    List<Future<EmittedRows>> docResults = results.get(i);
+                    for (int viewNumber = 0; viewNumber < nViews; viewNumber++) {
+                        Future<EmittedRows> result = docResults.get(viewNumber);
+                        if (result == null)
+                            continue;
+                        EmittedRows rows = getEmittedRows(result);
+                        indexer.emit(docs.get(i), viewNumber, rows.keys, rows.values);
                     }
-                });
-            } catch (Throwable e) {
-                throw new CouchbaseLiteException(e, Status.CALLBACK_ERROR);
+                }
+            } finally {
+                for (List<Future<EmittedRows>> docResults : results) {
+                    for (Future<EmittedRows> result : docResults) {
+                        if (result != null)
+                            result.cancel(false);
+                    }
+                }
+                results.clear();
+                for (Document doc : docs)
+                    doc.free();
+                docs.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the map block to run on the document for each view: null if the Indexer doesn't
+     * need the document for that view, kEmitNothing if the view must not index it (design
+     * docs, deleted docs, doc type mismatch) so that only its old rows get removed.
+     */
+    private static Mapper[] mappersForDocument(Indexer indexer,
+                                               Document doc,
+                                               List<Mapper> mapBlocks,
+                                               List<String> docTypes,
+                                               boolean useDocType) {
+        String docType = useDocType ? doc.getType() : null;
+        // Skip design docs
+        boolean validDocToIndex = !doc.deleted() && !doc.getDocID().startsWith("_design/");
+        Mapper[] mappers = new Mapper[mapBlocks.size()];
+        for (int viewNumber = 0; viewNumber < mappers.length; viewNumber++) {
+            if (!indexer.shouldIndex(doc, viewNumber))
+                continue;
+            boolean indexIt = validDocToIndex;
+            if (indexIt && useDocType) {
+                String viewDocType = docTypes.get(viewNumber);
+                if (viewDocType != null)
+                    indexIt = viewDocType.equals(docType);
             }
+            mappers[viewNumber] = indexIt ? mapBlocks.get(viewNumber) : kEmitNothing;
+        }
+        return mappers;
+    }
+
+    /**
+     * Reads the document body and adds the special properties visible to map functions.
+     */
+    private static Map<String, Object> bodyForIndexing(Document doc) throws ForestException {
+        // Read the document body:
+        Map<String, Object> body = ForestBridge.bodyOfSelectedRevision(doc);
+        body.put("_id", doc.getDocID());
+        body.put("_rev", doc.getRevID());
+        body.put("_local_seq", doc.getSequence());
+        if (doc.conflicted()) {
+            List<String> currentRevIDs = ForestBridge.getCurrentRevisionIDs(doc);
+            if (currentRevIDs != null && currentRevIDs.size() > 1)
+                body.put("_conflicts",
+                        currentRevIDs.subList(1, currentRevIDs.size()));
+        }
+        return body;
+    }
+
+    /**
+     * Runs the map block (if any) over the properties and collects the emitted rows.
+     * This must not call into cbforest, as it may run on a worker thread.
+     */
+    private static EmittedRows map(Mapper mapper, Map<String, Object> properties)
+            throws CouchbaseLiteException {
+        if (mapper == null || mapper == kEmitNothing)
+            return EmittedRows.EMPTY;
+        final List<Object> keys = new ArrayList<Object>();
+        final List<byte[]> values = new ArrayList<byte[]>();
+        try {
+            // Set up the emit block:
+            mapper.map(properties, new Emitter() {
+                @Override
+                public void emit(Object key, Object value) {
+                    if (key == null) {
+                        Log.w(Log.TAG_VIEW, "emit() called with nil key; ignoring");
+                        return;
+                    }
+                    try {
+                        byte[] json = Manager.getObjectMapper().writeValueAsBytes(value);
+                        keys.add(key);
+                        values.add(json);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error in obj -> json", e);
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        } catch (Throwable e) {
+            throw new CouchbaseLiteException(e, Status.CALLBACK_ERROR);
+        }
+        return new EmittedRows(keys.toArray(), values.toArray(new byte[values.size()][]));
+    }
+
+    private static EmittedRows getEmittedRows(Future<EmittedRows> result)
+            throws CouchbaseLiteException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CouchbaseLiteException(e, Status.UNKNOWN);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CouchbaseLiteException)
+                throw (CouchbaseLiteException) cause;
+            throw new CouchbaseLiteException(cause, Status.CALLBACK_ERROR);
         }
-        final byte[][] jsons = new byte[values.size()][];
-        for (int i = 0; i < values.size(); i++) {
-            jsons[i] = values.get(i);
+    }
+
+    /**
+     * Keys and JSON-encoded values emitted by a map function for one document.
+     */
+    private static class EmittedRows {
+        static final EmittedRows EMPTY = new EmittedRows(new Object[0], new byte[0][]);
+
+        final Object[] keys;
+        final byte[][] values;
+
+        EmittedRows(Object[] keys, byte[][] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Future holding an already known result, for views which have nothing to map.
+     */
+    private static class CompletedFuture<V> implements Future<V> {
+        private final V value;
+
+        CompletedFuture(V value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public V get() {
+            return value;
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) {
+            return value;
         }
-        indexer.emit(doc, viewNumber, keys.toArray(), jsons);
     }
 
     @Override
     public List<QueryRow> regularQuery(QueryOptions options) throws CouchbaseLiteException {
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        QueryRowIterator itr = regularQueryIterator(options);
         try {
-            openIndex();
+            QueryRow row;
+            while ((row = itr.next()) != null)
+                rows.add(row);
+        } finally {
+            itr.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Same as regularQuery(), but returns the rows through an iterator which reads and decodes
+     * them one at a time, instead of building the whole list up front.
+     */
+    public QueryRowIterator regularQueryIterator(QueryOptions options)
+            throws CouchbaseLiteException {
+        try {
+            beginReading();
         } catch (ForestException e) {
             Log.e(TAG, "Exception opening index while getting total rows", e);
             throw new CouchbaseLiteException(e.code);
@@ -388,64 +747,16 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
             options.setSkip(0);
         }
 
-        List<QueryRow> rows = new ArrayList<QueryRow>();
         QueryIterator itr;
         try {
             itr = forestQuery(options);
-            while (itr.next()) {
-                RevisionInternal docRevision = null;
-                byte[] bKey = itr.keyJSON();
-                byte[] bValue = itr.valueJSON();
-                Object key = fromJSON(bKey, Object.class);
-                Object value = fromJSON(bValue, Object.class);
-                String docID = itr.docID();
-                long sequence = itr.sequence();
-                if (options.isIncludeDocs()) {
-                    String linkedID = null;
-                    if (value instanceof Map)
-                        linkedID = (String) ((Map) value).get("_id");
-                    Status status = new Status();
-                    if (linkedID != null) {
-                        // http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views
-                        // #Linked_documents
-                        String linkedRev = (String) ((Map) value).get("_rev");
-                        docRevision = _dbStore.getDocument(linkedID, linkedRev, true, status);
-                        if (docRevision != null)
-                            sequence = docRevision.getSequence();
-                        else
-                            Log.w(TAG, "Couldn't load linked doc %s rev %s: status %d",
-                                    linkedID, linkedRev, status.getCode());
-                    } else {
-                        docRevision = _dbStore.getDocument(docID, null, true, status);
-                    }
-                }
-                Log.v(TAG, "Query %s: Found row with key=%s, value=%s, id=%s",
-                        name, key == null ? "" : key, value == null ? "" : value, docID);
-                // Create a CBLQueryRow:
-                QueryRow row = new QueryRow(docID, sequence,
-                        key, value,
-                        docRevision);
-                if (postFilter != null) {
-                    if (!postFilter.apply(row)) {
-                        continue;
-                    }
-                    if (skip > 0) {
-                        --skip;
-                        continue;
-                    }
-                }
-                rows.add(row);
-                if (--limit == 0)
-                    break;
-            }
         } catch (ForestException e) {
             Log.e(TAG, "Error in regularQuery()", e);
+            endReading();
             throw new CouchbaseLiteException(e.code);
-        } catch (IOException e) {
-            Log.e(TAG, "Error in regularQuery()", e);
-            throw new CouchbaseLiteException(Status.UNKNOWN);
         }
-        return rows;
+        return new QueryRowIterator(this, _dbStore, itr, options.isIncludeDocs(),
+                postFilter, skip, limit);
     }
 
     /**
@@ -458,8 +769,6 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
     public List<QueryRow> reducedQuery(QueryOptions options) throws CouchbaseLiteException {
         Predicate<QueryRow> postFilter = options.getPostFilter();
 
-        int groupLevel = options.getGroupLevel();
-        boolean group = options.isGroup() || (groupLevel > 0);
         Reducer reduce = delegate.getReduce();
         if (options.isReduceSpecified()) {
             if (options.isReduce() && reduce == null) {
@@ -469,15 +778,51 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
             }
         }
 
-        final List<Object> keysToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
-        final List<Object> valuesToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        // Reuse the last result for the same query if the index hasn't changed since:
+        List<QueryRow> rows = null;
+        String cacheKey = reduceCacheEnabled ? reduceCacheKey(options) : null;
+        long lastSequence = 0;
+        String mapVersion = null;
+        if (cacheKey != null) {
+            lastSequence = getLastSequenceIndexed();
+            mapVersion = delegate.getMapVersion();
+            rows = getCachedReduce(cacheKey, lastSequence, mapVersion);
+        }
+        if (rows == null) {
+            Status status = new Status(Status.OK);
+            rows = reducedRows(options, reduce, status);
+            if (cacheKey != null && status.isSuccessful())
+                putCachedReduce(cacheKey, lastSequence, mapVersion, rows);
+        }
+
+        if (postFilter != null) {
+            List<QueryRow> filtered = new ArrayList<QueryRow>(rows.size());
+            for (QueryRow row : rows) {
+                if (postFilter.apply(row))
+                    filtered.add(row);
+            }
+            rows = filtered;
+        }
+        return rows;
+    }
+
+    /**
+     * Runs the reduced/grouped query, without applying the post-filter.
+     * If reading the index fails, outStatus is set and the rows read so far are returned.
+     */
+    private List<QueryRow> reducedRows(QueryOptions options, Reducer reduce, Status outStatus)
+            throws CouchbaseLiteException {
+        int groupLevel = options.getGroupLevel();
+        boolean group = options.isGroup() || (groupLevel > 0);
+
+        final GroupReducer groupReducer = new GroupReducer(reduce, incrementalReduceEnabled);
         final Object[] lastKeys = new Object[1];
         lastKeys[0] = null;
         final ForestDBViewStore that = this;
         final List<QueryRow> rows = new ArrayList<QueryRow>();
 
         try {
-            openIndex();
+            beginReading();
         } catch (ForestException e) {
             throw new CouchbaseLiteException(e.code);
         }
@@ -487,45 +832,42 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
             itr = forestQuery(options);
 
             while (itr.next()) {
-                byte[] bKey = itr.keyJSON();
-                byte[] bValue = itr.valueJSON();
-                Object keyObject = fromJSON(bKey, Object.class);
-                Object valueObject = fromJSON(bValue, Object.class);
+                // Built-in reducers work on the raw JSON, and don't need the keys unless grouping:
+                Object keyObject = null;
+                if (group || !groupReducer.isBuiltin())
+                    keyObject = fromJSON(itr.keyJSON(), Object.class);
                 if (group && !groupTogether(keyObject, lastKeys[0], groupLevel)) {
                     if (lastKeys[0] != null) {
                         // This pair starts a new group, so reduce & record the last one:
                         Object key = groupKey(lastKeys[0], groupLevel);
-                        Object reduced = (reduce != null) ?
-                                reduce.reduce(keysToReduce, valuesToReduce, false) : null;
-                        QueryRow row = new QueryRow(null, 0, key, reduced, null);
-                        if (postFilter == null || postFilter.apply(row))
-                            rows.add(row);
-                        keysToReduce.clear();
-                        valuesToReduce.clear();
+                        Object reduced = groupReducer.finish();
+                        rows.add(new QueryRow(null, 0, key, reduced, null));
                     }
                     lastKeys[0] = keyObject;
                 }
 
-                keysToReduce.add(keyObject);
-                valuesToReduce.add(valueObject);
+                if (groupReducer.isBuiltin())
+                    groupReducer.addJSON(groupReducer.needsValues() ? itr.valueJSON() : null);
+                else
+                    groupReducer.add(keyObject, fromJSON(itr.valueJSON(), Object.class));
             }
 
         } catch (ForestException e) {
             Log.e(TAG, "Error in reducedQuery()", e);
+            outStatus.setCode(ForestBridge._err2status(e));
         } catch (IOException e) {
             Log.e(TAG, "Error in reducedQuery()", e);
             throw new CouchbaseLiteException(Status.UNKNOWN);
+        } finally {
+            endReading();
         }
 
-        if (keysToReduce != null && keysToReduce.size() > 0) {
+        if (!groupReducer.isEmpty()) {
             // Finish the last group (or the entire list, if no grouping):
             Object key = group ? groupKey(lastKeys[0], groupLevel) : null;
-            Object reduced = (reduce != null) ?
-                    reduce.reduce(keysToReduce, valuesToReduce, false) : null;
+            Object reduced = groupReducer.finish();
             Log.v(TAG, String.format(Locale.ENGLISH, "Query %s: Reduced to key=%s, value=%s", name, key, reduced));
-            QueryRow row = new QueryRow(null, 0, key, reduced, null);
-            if (postFilter == null || postFilter.apply(row))
-                rows.add(row);
+            rows.add(new QueryRow(null, 0, key, reduced, null));
         }
         return rows;
     }
@@ -533,7 +875,7 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
     @Override
     public List<Map<String, Object>> dump() {
         try {
-            openIndex();
+            beginReading();
         } catch (ForestException e) {
             Log.e(TAG, "ERROR in openIndex()", e);
             return null;
@@ -553,6 +895,8 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
             }
         } catch (Exception ex) {
             Log.e(TAG, "Error in dump()", ex);
+        } finally {
+            endReading();
         }
         return result;
     }
@@ -581,6 +925,13 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
      * - (MapReduceIndex*) openIndexWithOptions: (Database::openFlags)options
      */
     private View openIndex(int flags, boolean dryRun) throws ForestException {
+        synchronized (lockIndex) {
+            return _openIndex(flags, dryRun);
+        }
+    }
+
+    private View _openIndex(int flags, boolean dryRun) throws ForestException {
+        _lastAccess = System.currentTimeMillis();
         if (_view == null) {
             // Flags:
             if (_dbStore.getAutoCompact())
@@ -598,7 +949,9 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
             _view = new View(_dbStore.forest, _path, flags, enAlgorithm, enKey, name,
                     dryRun ? "0" : delegate.getMapVersion());
             if (dryRun) {
-                closeIndex();
+                closeIndex(true);
+            } else {
+                scheduleIdleClose(getCloseDelayMillis());
             }
         }
         return _view;
@@ -609,27 +962,159 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
      * - (void) closeIndex
      */
     private void closeIndex() {
-        // TODO
-        //NSObject cancelPreviousPerformRequestsWithTarget: self selector: @selector(closeIndex) object: nil];
+        closeIndex(false);
+    }
 
-        // NOTE: view could be busy for indexing. as result, view.close() could fail.
-        //       It requires to wait till view is not busy. CBL Java/Android waits maximum 10 seconds.
-        for (int i = 0; i < 100 && _view != null; i++) {
-            try {
-                _view.close();
-                _view = null;
-            } catch (ForestException e) {
-                Log.w(TAG, "Failed to close Index: [%s] [%s]", _view, Thread.currentThread().getName());
+    /**
+     * Closes the index. If an indexer is writing to it or a query is reading it, and
+     * waitForIndexer is false, the close is deferred until the last of them is done, instead
+     * of blocking the caller; they keep using the open index meanwhile. Only setVersion()
+     * relies on that: callers which need the file closed (close(), deleting the files) pass
+     * waitForIndexer=true, which waits up to 10 seconds for them before deferring the close.
+     * Waiting releases lockIndex, so readers aren't blocked by a close in progress.
+     */
+    private void closeIndex(boolean waitForIndexer) {
+        synchronized (lockIndex) {
+            if (_idleCloseTask != null) {
+                _idleCloseTask.cancel(false);
+                _idleCloseTask = null;
+            }
+            // CBL Java/Android waits maximum 10 seconds.
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            long wait;
+            while (waitForIndexer && (_indexing > 0 || _readers > 0) &&
+                    (wait = deadline - System.currentTimeMillis()) > 0) {
                 try {
-                    Thread.sleep(100); // 100 ms (maximum wait time: 10sec)
-                } catch (Exception ex) {
+                    lockIndex.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            // NOTE: view could still be busy. as result, view.close() could fail.
+            //       It requires to wait till view is not busy. CBL Java/Android waits maximum 10 seconds.
+            while (_view != null) {
+                if (_indexing > 0 || _readers > 0) {
+                    Log.v(TAG, "Index %s is in use; closing it once done", name);
+                    _closePending = true;
+                    return;
+                }
+                try {
+                    _view.close();
+                    _view = null;
+                } catch (ForestException e) {
+                    Log.w(TAG, "Failed to close Index: [%s] [%s]", _view, Thread.currentThread().getName());
+                    if ((wait = deadline - System.currentTimeMillis()) <= 0)
+                        break;
+                    try {
+                        lockIndex.wait(Math.min(wait, 100)); // (maximum wait time: 10sec)
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
                 }
             }
+            _closePending = false;
+        }
+    }
+
+    /**
+     * Opens the index for updateIndexes(), and marks it as being written so that closeIndex()
+     * doesn't stall behind the indexer.
+     */
+    private View beginIndexing() throws ForestException {
+        synchronized (lockIndex) {
+            View view = _openIndex(0, false);
+            _indexing++;
+            return view;
+        }
+    }
+
+    private void endIndexing() {
+        synchronized (lockIndex) {
+            _indexing--;
+            indexReleased();
         }
     }
 
+    /**
+     * Opens the index if needed and marks it as being read, so that it isn't closed (as idle
+     * or by closeIndex()) until the matching endReading().
+     */
+    private void beginReading() throws ForestException {
+        synchronized (lockIndex) {
+            _openIndex(0, false);
+            _readers++;
+        }
+    }
+
+    void endReading() {
+        synchronized (lockIndex) {
+            _readers--;
+            _lastAccess = System.currentTimeMillis();
+            indexReleased();
+        }
+    }
+
+    /**
+     * Called by the last indexer or reader when done, to wake up closeIndex() or perform the
+     * close it deferred. Must be called with lockIndex held.
+     */
+    private void indexReleased() {
+        if (_indexing > 0 || _readers > 0)
+            return;
+        lockIndex.notifyAll();
+        if (_closePending)
+            closeIndex(false);
+    }
+
+    /**
+     * in CBL_ForestDBViewStorage.mm, closeIndex is performed after kCloseDelay of inactivity.
+     * Must be called with lockIndex held.
+     */
+    private void scheduleIdleClose(long delayMillis) {
+        if (delayMillis <= 0 || _idleCloseTask != null)
+            return;
+        _idleCloseTask = ForestDBExecutor.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeIfIdle();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeIfIdle() {
+        synchronized (lockIndex) {
+            _idleCloseTask = null;
+            if (_view == null)
+                return;
+            long delay = getCloseDelayMillis();
+            if (delay <= 0)
+                return;
+            long idle = System.currentTimeMillis() - _lastAccess;
+            if (_indexing > 0 || _readers > 0 || idle < delay) {
+                // Still in use; check again later:
+                scheduleIdleClose(Math.max(delay - idle, 1000));
+                return;
+            }
+            Log.v(TAG, "Closing index %s after %d ms of inactivity", name, idle);
+            closeIndex(false);
+        }
+    }
+
+    private static long getCloseDelayMillis() {
+        return (long) (closeDelay * 1000);
+    }
+
+    private static void endIndexing(List<ForestDBViewStore> viewStores) {
+        for (ForestDBViewStore viewStore : viewStores)
+            viewStore.endIndexing();
+        viewStores.clear();
+    }
+
     private boolean deleteViewFiles() {
-        closeIndex();
+        closeIndex(true);
         int flags = 0;
         if (_dbStore.getAutoCompact())
             flags |= Database.AutoCompact;
@@ -662,6 +1147,7 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
      */
     private QueryIterator forestQuery(QueryOptions options) throws ForestException {
         // NOTE: Geo & FullText queries are not supported yet
+        View view = openIndex();
         if (options == null)
             options = new QueryOptions();
         long skip = options.getSkip();
@@ -671,7 +1157,7 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
         boolean inclusiveEnd = options.isInclusiveEnd();
         if (options.getKeys() != null && options.getKeys().size() > 0) {
             Object[] keys = options.getKeys().toArray();
-            return _view.query(
+            return view.query(
                     skip,
                     limit,
                     descending,
@@ -684,7 +1170,7 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
             Object startKey = options.getStartKey();
             String startKeyDocID = options.getStartKeyDocId();
             String endKeyDocID = options.getEndKeyDocId();
-            return _view.query(
+            return view.query(
                     skip,
                     limit,
                     descending,
@@ -697,6 +1183,167 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
         }
     }
 
+    /**
+     * Returns the key identifying a reduced query in the reduce cache, or null if the options
+     * can't be encoded.
+     */
+    private static String reduceCacheKey(QueryOptions options) {
+        List<Object> key = new ArrayList<Object>();
+        key.add(options.getStartKey());
+        key.add(options.getEndKey());
+        key.add(options.getKeys());
+        key.add(options.getStartKeyDocId());
+        key.add(options.getEndKeyDocId());
+        key.add(options.isInclusiveStart());
+        key.add(options.isInclusiveEnd());
+        key.add(options.isDescending());
+        key.add(options.getPrefixMatchLevel());
+        key.add(options.getSkip());
+        key.add(options.getLimit());
+        key.add(options.isGroup());
+        key.add(options.getGroupLevel());
+        try {
+            return Manager.getObjectMapper().writeValueAsString(key);
+        } catch (IOException e) {
+            Log.v(TAG, "Query options can't be used as a reduce cache key: %s", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cached rows for the query, if they were computed at the same
+     * lastSequenceIndexed and map version. Rows are decoded again for every hit, so callers
+     * are free to modify them.
+     */
+    private List<QueryRow> getCachedReduce(String cacheKey, long lastSequence, String mapVersion) {
+        CachedReduce cached;
+        synchronized (reduceCache) {
+            if (reduceCachePersistent && !reduceCacheLoaded)
+                loadReduceCache();
+            cached = reduceCache.get(cacheKey);
+        }
+        if (cached == null || !cached.isValid(lastSequence, mapVersion))
+            return null;
+        try {
+            List<List<Object>> pairs = Manager.getObjectMapper().readValue(cached.rows, List.class);
+            List<QueryRow> rows = new ArrayList<QueryRow>(pairs.size());
+            for (List<Object> pair : pairs)
+                rows.add(new QueryRow(null, 0, pair.get(0), pair.get(1), null));
+            Log.v(TAG, "Query %s: Reusing %d cached reduced rows", name, rows.size());
+            return rows;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to decode cached reduced rows", e);
+            return null;
+        }
+    }
+
+    private void putCachedReduce(String cacheKey, long lastSequence, String mapVersion,
+                                 List<QueryRow> rows) {
+        if (lastSequence < 0 || mapVersion == null)
+            return;
+        List<Object> pairs = new ArrayList<Object>(rows.size());
+        for (QueryRow row : rows)
+            pairs.add(Arrays.asList(row.getKey(), row.getValue()));
+        CachedReduce cached;
+        try {
+            cached = new CachedReduce(lastSequence, mapVersion,
+                    Manager.getObjectMapper().writeValueAsBytes(pairs));
+        } catch (IOException e) {
+            Log.v(TAG, "Reduced rows can't be cached: %s", e.toString());
+            return;
+        }
+        synchronized (reduceCache) {
+            reduceCache.put(cacheKey, cached);
+            if (reduceCachePersistent)
+                reduceCacheDirty = true;
+        }
+    }
+
+    /**
+     * Empties the reduce cache, including its persisted copy if persistence is enabled.
+     */
+    private void clearReduceCache() {
+        synchronized (reduceCache) {
+            reduceCache.clear();
+            reduceCacheLoaded = true; // nothing to read back anymore
+            reduceCacheDirty = false;
+        }
+        if (reduceCachePersistent && _dbStore.getRawValue(kReduceCacheStore, name) != null)
+            _dbStore.setRawValue(kReduceCacheStore, name, null, null);
+    }
+
+    /**
+     * Reads the persisted reduce cache of the view. Must be called with reduceCache locked.
+     * The record is a JSON array of [cacheKey, lastSequence, mapVersion, rows] entries, from
+     * least to most recently used.
+     */
+    private void loadReduceCache() {
+        reduceCacheLoaded = true;
+        byte[][] metaNbody = _dbStore.getRawValue(kReduceCacheStore, name);
+        if (metaNbody == null || metaNbody[1] == null)
+            return;
+        try {
+            List<List<Object>> entries =
+                    Manager.getObjectMapper().readValue(metaNbody[1], List.class);
+            for (List<Object> entry : entries) {
+                CachedReduce cached = new CachedReduce(((Number) entry.get(1)).longValue(),
+                        (String) entry.get(2),
+                        Manager.getObjectMapper().writeValueAsBytes(entry.get(3)));
+                // (entries already in memory are more recent)
+                if (!reduceCache.containsKey(entry.get(0)))
+                    reduceCache.put((String) entry.get(0), cached);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Ignoring unreadable persisted reduce cache of view %s", e, name);
+        }
+    }
+
+    /**
+     * Writes the reduce cache to the database if it has changed since it was last read or
+     * written. As the cache is bounded, so is the record.
+     */
+    private void saveReduceCache() {
+        byte[] body;
+        synchronized (reduceCache) {
+            if (!reduceCacheDirty)
+                return;
+            reduceCacheDirty = false;
+            try {
+                List<Object> entries = new ArrayList<Object>(reduceCache.size());
+                for (Map.Entry<String, CachedReduce> e : reduceCache.entrySet()) {
+                    CachedReduce cached = e.getValue();
+                    entries.add(Arrays.asList(e.getKey(), cached.lastSequence, cached.mapVersion,
+                            Manager.getObjectMapper().readValue(cached.rows, Object.class)));
+                }
+                body = Manager.getObjectMapper().writeValueAsBytes(entries);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to encode the reduce cache of view %s", e, name);
+                return;
+            }
+        }
+        _dbStore.setRawValue(kReduceCacheStore, name, null, body);
+    }
+
+    /**
+     * Reduced rows of a query, encoded as a JSON array of [key, value] pairs, along with the
+     * state of the index they were computed from.
+     */
+    private static class CachedReduce {
+        final long lastSequence;
+        final String mapVersion;
+        final byte[] rows;
+
+        CachedReduce(long lastSequence, String mapVersion, byte[] rows) {
+            this.lastSequence = lastSequence;
+            this.mapVersion = mapVersion;
+            this.rows = rows;
+        }
+
+        boolean isValid(long lastSequence, String mapVersion) {
+            return this.lastSequence == lastSequence && this.mapVersion.equals(mapVersion);
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Internal (Package) Methods
     ///////////////////////////////////////////////////////////////////////////
@@ -720,7 +1367,7 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
                         } catch (ForestException e) {
                             throw new ActionException("Cannot open index", e);
                         }
-                        closeIndex();
+                        closeIndex(true);
                     }
                 }
         );
@@ -818,8 +1465,101 @@ public class ForestDBViewStore implements ViewStore, QueryRowStore, Constants {
         }
     }
 
+    /**
+     * Collects the rows of one group and reduces them. In incremental mode, rows are reduced
+     * in chunks of REDUCE_BATCH_SIZE and the partial results are combined with rereduce, so at
+     * most REDUCE_BATCH_SIZE rows and REDUCE_BATCH_SIZE partial results are held at once.
+     * Built-in reducers are fed the raw JSON values through addJSON() and only keep running
+     * totals.
+     */
+    private static class GroupReducer {
+        private final Reducer reduce;
+        private final BuiltinReducer builtin;
+        private BuiltinReducer.Accumulator accumulator;
+        private final boolean incremental;
+        private final List<Object> keys = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        private final List<Object> values = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        private final List<Object> partials = new ArrayList<Object>();
+        private boolean empty = true;
+
+        GroupReducer(Reducer reduce, boolean incremental) {
+            this.reduce = reduce;
+            this.builtin = reduce instanceof BuiltinReducer ? (BuiltinReducer) reduce : null;
+            this.accumulator = builtin != null ? builtin.newAccumulator() : null;
+            this.incremental = incremental && reduce != null;
+        }
+
+        boolean isBuiltin() {
+            return builtin != null;
+        }
+
+        boolean needsValues() {
+            return builtin == null || builtin.needsValues();
+        }
+
+        /**
+         * Adds a row for a built-in reducer. json may be null if !needsValues().
+         */
+        void addJSON(byte[] json) {
+            empty = false;
+            accumulator.addJSON(json);
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        void add(Object key, Object value) {
+            empty = false;
+            if (reduce == null)
+                return; // only need to know the group has rows
+            keys.add(key);
+            values.add(value);
+            if (incremental && keys.size() >= REDUCE_BATCH_SIZE) {
+                partials.add(reduce.reduce(keys, values, false));
+                keys.clear();
+                values.clear();
+                if (partials.size() >= REDUCE_BATCH_SIZE)
+                    rereducePartials();
+            }
+        }
+
+        /**
+         * Returns the reduced value of the rows added since the last call, and resets.
+         */
+        Object finish() {
+            Object reduced = null;
+            if (builtin != null) {
+                reduced = builtin.result(accumulator);
+                accumulator.reset();
+            } else if (reduce != null) {
+                if (partials.isEmpty()) {
+                    reduced = reduce.reduce(keys, values, false);
+                } else {
+                    if (!keys.isEmpty())
+                        partials.add(reduce.reduce(keys, values, false));
+                    rereducePartials();
+                    reduced = partials.get(0);
+                }
+            }
+            keys.clear();
+            values.clear();
+            partials.clear();
+            empty = true;
+            return reduced;
+        }
+
+        private void rereducePartials() {
+            if (partials.size() < 2)
+                return;
+            Object reduced = reduce.reduce(null, partials, true);
+            partials.clear();
+            partials.add(reduced);
+        }
+    }
+
     // helper method
-    private static <T> T fromJSON(byte[] src, Class<T> valueType) throws IOException {
+    static <T> T fromJSON(byte[] src, Class<T> valueType) throws IOException {
         if (src == null)
             return null;
         return Manager.getObjectMapper().readValue(src, valueType);
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.cbforest.ForestException;
+import com.couchbase.lite.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.couchbase.cbforest.Constants.C4ErrorDomain.ForestDBDomain;
+import static com.couchbase.cbforest.Constants.FDBErrors.FDB_RESULT_HANDLE_BUSY;
+
+/**
+ * Retry policy for ForestDB operations failing with FDB_RESULT_HANDLE_BUSY: exponential
+ * backoff with jitter, bounded by the total time spent waiting. The first retries come after
+ * a few milliseconds, and the delay doubles up to MAX_DELAY_MS. The jitter keeps concurrent
+ * readers from retrying in lockstep.
+ * <p/>
+ * One instance per operation; not thread-safe. The static counters are shared by all stores
+ * and can be read through ForestDBStore.getHandleBusyCount() etc.
+ */
+final class HandleBusyBackoff {
+    private static final String TAG = Log.TAG_DATABASE;
+
+    // Default time budget, for operations which used to retry forever
+    static final long DEFAULT_MAX_WAIT_MS = 30 * 1000;
+    private static final long INITIAL_DELAY_MS = 5;
+    static final long MAX_DELAY_MS = 300;
+
+    private static final Random random = new Random();
+
+    // Number of FDB_RESULT_HANDLE_BUSY errors seen
+    static final AtomicLong busyCount = new AtomicLong();
+    // Total time spent waiting before retrying, in milliseconds
+    static final AtomicLong busyWaitMillis = new AtomicLong();
+    // Number of operations which gave up after waiting maxWaitMillis
+    static final AtomicLong busyFailures = new AtomicLong();
+
+    private final String operation;
+    private final long maxWaitMillis;
+    private int attempts = 1;
+    private long waited = 0;
+
+    HandleBusyBackoff(String operation) {
+        this(operation, DEFAULT_MAX_WAIT_MS);
+    }
+
+    /**
+     * @param maxWaitMillis total time to spend waiting for the handle before giving up
+     */
+    HandleBusyBackoff(String operation, long maxWaitMillis) {
+        this.operation = operation;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    static boolean isHandleBusy(ForestException e) {
+        return e.domain == ForestDBDomain && e.code == FDB_RESULT_HANDLE_BUSY;
+    }
+
+    /**
+     * Called after the operation failed with the given exception. If it is worth retrying,
+     * waits and returns true; otherwise returns false and the caller should give up.
+     */
+    boolean retry(ForestException e) {
+        if (!isHandleBusy(e))
+            return false;
+        busyCount.incrementAndGet();
+        if (waited >= maxWaitMillis) {
+            busyFailures.incrementAndGet();
+            Log.w(TAG, "%s: ForestDB handle still busy after %d attempts in %dms",
+                    operation, attempts, waited);
+            return false;
+        }
+
+        long cap = Math.min(MAX_DELAY_MS, INITIAL_DELAY_MS << Math.min(attempts - 1, 16));
+        long delay = cap / 2 + random.nextInt((int) (cap / 2) + 1);
+        delay = Math.min(delay, maxWaitMillis - waited);
+        attempts++;
+        Log.d(TAG, "%s: ForestDB handle is busy, retrying in %dms", operation, delay);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        waited += delay;
+        busyWaitMillis.addAndGet(delay);
+        return true;
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.cbforest.ForestException;
+import com.couchbase.cbforest.QueryIterator;
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Predicate;
+import com.couchbase.lite.QueryRow;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lazily decodes the rows of a regular (non-reduced) view query. Each call to next() reads
+ * one row from the cbforest QueryIterator and only then decodes its key and value, so the
+ * memory used stays the same regardless of the number of rows in the result.
+ * <p/>
+ * With include_docs, rows are read ahead in batches of INCLUDE_DOCS_BATCH_SIZE so that their
+ * documents (and linked documents) can be loaded with one ForestDBStore.getDocuments() call
+ * per batch instead of one getDocument() call per row.
+ * <p/>
+ * Not thread-safe. Call close() when done if the iterator is not read to the end (an iterator
+ * which is garbage collected without that is closed by its finalizer).
+ */
+public class QueryRowIterator implements Closeable {
+    public static String TAG = ForestDBViewStore.TAG;
+
+    // Number of rows read ahead to load their documents at once, when including docs
+    private static final int INCLUDE_DOCS_BATCH_SIZE = 100;
+
+    private final ForestDBViewStore viewStore;
+    private final ForestDBStore dbStore;
+    private final boolean includeDocs;
+    private final Predicate<QueryRow> postFilter;
+    private int skip;
+    private int limit;
+    private QueryIterator itr;
+    // include_docs: rows read ahead, with their documents loaded
+    private final LinkedList<QueryRow> pendingRows = new LinkedList<QueryRow>();
+
+    QueryRowIterator(ForestDBViewStore viewStore,
+                     ForestDBStore dbStore,
+                     QueryIterator itr,
+                     boolean includeDocs,
+                     Predicate<QueryRow> postFilter,
+                     int skip,
+                     int limit) {
+        this.viewStore = viewStore;
+        this.dbStore = dbStore;
+        this.itr = itr;
+        this.includeDocs = includeDocs;
+        this.postFilter = postFilter;
+        this.skip = skip;
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the next row, or null when there are no more rows.
+     */
+    public QueryRow next() throws CouchbaseLiteException {
+        try {
+            QueryRow row;
+            while ((row = nextUnfilteredRow()) != null) {
+                if (postFilter != null) {
+                    if (!postFilter.apply(row)) {
+                        continue;
+                    }
+                    if (skip > 0) {
+                        --skip;
+                        continue;
+                    }
+                }
+                if (--limit == 0)
+                    close();
+                return row;
+            }
+        } catch (ForestException e) {
+            Log.e(TAG, "Error in QueryRowIterator.next()", e);
+            close();
+            throw new CouchbaseLiteException(e.code);
+        } catch (IOException e) {
+            Log.e(TAG, "Error in QueryRowIterator.next()", e);
+            close();
+            throw new CouchbaseLiteException(Status.UNKNOWN);
+        }
+        close();
+        return null;
+    }
+
+    /**
+     * Frees the underlying cbforest enumerator and lets the view index be closed again.
+     * Subsequent calls to next() return null.
+     */
+    @Override
+    public void close() {
+        if (itr != null) {
+            itr.free();
+            itr = null;
+            viewStore.endReading();
+        }
+        pendingRows.clear();
+    }
+
+    /**
+     * Guard for iterators which are dropped without being closed or read to the end: their
+     * reader count would otherwise keep the view index from ever being closed as idle.
+     */
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            if (itr != null) {
+                Log.w(TAG, "QueryRowIterator of view %s was not closed", viewStore.getName());
+                close();
+            }
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private QueryRow nextUnfilteredRow() throws ForestException, IOException {
+        if (!includeDocs) {
+            if (itr == null || !itr.next())
+                return null;
+            RawRow raw = readRow();
+            return new QueryRow(raw.docID, raw.sequence, raw.key, raw.value, null);
+        }
+        if (pendingRows.isEmpty())
+            readRowsWithDocs();
+        return pendingRows.poll();
+    }
+
+    /**
+     * Reads the next batch of rows and loads all of their documents at once.
+     */
+    private void readRowsWithDocs() throws ForestException, IOException {
+        // Without a post-filter every row read is returned, so don't read past the limit:
+        int batchSize = INCLUDE_DOCS_BATCH_SIZE;
+        if (postFilter == null && limit > 0)
+            batchSize = Math.min(batchSize, limit);
+        List<RawRow> rows = new ArrayList<RawRow>(batchSize);
+        List<String> docIDs = new ArrayList<String>(batchSize);
+        List<String> revIDs = new ArrayList<String>(batchSize);
+        while (rows.size() < batchSize && itr != null && itr.next()) {
+            RawRow row = readRow();
+            String linkedID = null;
+            if (row.value instanceof Map)
+                linkedID = (String) ((Map) row.value).get("_id");
+            if (linkedID != null) {
+                // http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views
+                // #Linked_documents
+                row.linked = true;
+                docIDs.add(linkedID);
+                revIDs.add((String) ((Map) row.value).get("_rev"));
+            } else {
+                docIDs.add(row.docID);
+                revIDs.add(null);
+            }
+            rows.add(row);
+        }
+        if (rows.isEmpty())
+            return;
+
+        Status[] statuses = new Status[rows.size()];
+        List<RevisionInternal> docs = dbStore.getDocuments(docIDs, revIDs, true, statuses);
+        for (int i = 0; i < rows.size(); i++) {
+            RawRow row = rows.get(i);
+            RevisionInternal docRevision = docs.get(i);
+            long sequence = row.sequence;
+            if (row.linked) {
+                if (docRevision != null)
+                    sequence = docRevision.getSequence();
+                else
+                    Log.w(TAG, "Couldn't load linked doc %s rev %s: status %d",
+                            docIDs.get(i), revIDs.get(i), statuses[i].getCode());
+            }
+            pendingRows.add(new QueryRow(row.docID, sequence, row.key, row.value, docRevision));
+        }
+    }
+
+    private RawRow readRow() throws ForestException, IOException {
+        RawRow row = new RawRow();
+        row.key = ForestDBViewStore.fromJSON(itr.keyJSON(), Object.class);
+        row.value = ForestDBViewStore.fromJSON(itr.valueJSON(), Object.class);
+        row.docID = itr.docID();
+        row.sequence = itr.sequence();
+        Log.v(TAG, "Query %s: Found row with key=%s, value=%s, id=%s", viewStore.getName(),
+                row.key == null ? "" : row.key, row.value == null ? "" : row.value, row.docID);
+        return row;
+    }
+
+    /**
+     * Decoded index row, before its document gets attached.
+     */
+    private static class RawRow {
+        Object key;
+        Object value;
+        String docID;
+        long sequence;
+        boolean linked;
+    }
+}
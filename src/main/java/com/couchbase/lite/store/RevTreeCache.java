@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.cbforest.Constants.C4RevisionFlags;
+import com.couchbase.cbforest.Document;
+import com.couchbase.cbforest.ForestException;
+import com.couchbase.lite.internal.RevisionInternal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Short-lived, bounded cache of revision trees, so that the ancestry questions asked while
+ * inserting a replicated revision (getPossibleAncestorRevisionIDs, findCommonAncestorOf,
+ * getAllRevisions) don't each load the document and walk its tree through JNI. A tree is read
+ * in a single selectNextRev() pass, as those callers would walk it anyway; it doesn't record
+ * parents, which would cost extra JNI calls per revision, so revision histories are walked on
+ * the document instead. Entries expire after TTL_MS and must be invalidated whenever the
+ * document is saved or purged.
+ * <p/>
+ * Thread-safe.
+ */
+final class RevTreeCache {
+    // Maximum number of documents whose trees are cached
+    private static final int MAX_DOCS = 100;
+    // Time after which a cached tree isn't used anymore
+    private static final long TTL_MS = 1000;
+
+    private final Map<String, Tree> trees = new LinkedHashMap<String, Tree>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Tree> eldest) {
+            return size() > MAX_DOCS;
+        }
+    };
+
+    // Incremented by every invalidation, see put()
+    private long version = 0;
+
+    /**
+     * Returns the cached tree of the document, or null if there is none or it expired.
+     */
+    synchronized Tree get(String docID) {
+        Tree tree = trees.get(docID);
+        if (tree != null && System.currentTimeMillis() - tree.loadTime > TTL_MS) {
+            trees.remove(docID);
+            tree = null;
+        }
+        return tree;
+    }
+
+    /**
+     * Value to pass to put() for a tree loaded from now on.
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Caches a tree, unless something was invalidated since getVersion() returned version:
+     * the tree may have been loaded before the document was saved.
+     */
+    synchronized void put(Tree tree, long version) {
+        if (version == this.version)
+            trees.put(tree.docID, tree);
+    }
+
+    synchronized void remove(String docID) {
+        version++;
+        trees.remove(docID);
+    }
+
+    synchronized void clear() {
+        version++;
+        trees.clear();
+    }
+
+    /**
+     * Snapshot of the revision tree of a document, in primitive arrays. Revisions are in the
+     * order of Document.selectNextRev(), starting with the current revision.
+     */
+    static final class Tree {
+        final String docID;
+        final String[] revIDs;
+        final int[] flags; // C4RevisionFlags
+        final long[] sequences;
+        final boolean[] hasBodies;
+        private final Map<String, Integer> indexes;
+        private final long loadTime;
+
+        private Tree(String docID, int count) {
+            this.docID = docID;
+            revIDs = new String[count];
+            flags = new int[count];
+            sequences = new long[count];
+            hasBodies = new boolean[count];
+            indexes = new HashMap<String, Integer>(count * 4 / 3 + 1);
+            loadTime = System.currentTimeMillis();
+        }
+
+        /**
+         * Reads the whole tree of the document in one pass. Leaves another revision selected.
+         */
+        static Tree load(Document doc, String docID) throws ForestException {
+            // Revisions, in tree order:
+            List<String> revIDs = new ArrayList<String>();
+            List<Integer> flags = new ArrayList<Integer>();
+            List<Long> sequences = new ArrayList<Long>();
+            List<Boolean> hasBodies = new ArrayList<Boolean>();
+            doc.selectCurrentRev();
+            do {
+                revIDs.add(doc.getSelectedRevID());
+                flags.add((int) doc.getSelectedRevFlags());
+                sequences.add(doc.getSelectedSequence());
+                hasBodies.add(doc.hasRevisionBody());
+            } while (doc.selectNextRev());
+
+            Tree tree = new Tree(docID, revIDs.size());
+            for (int i = 0; i < revIDs.size(); i++) {
+                tree.revIDs[i] = revIDs.get(i);
+                tree.flags[i] = flags.get(i);
+                tree.sequences[i] = sequences.get(i);
+                tree.hasBodies[i] = hasBodies.get(i);
+                tree.indexes.put(revIDs.get(i), i);
+            }
+            return tree;
+        }
+
+        int size() {
+            return revIDs.length;
+        }
+
+        /**
+         * Index of the revision, or -1 if it isn't in the tree.
+         */
+        int indexOf(String revID) {
+            Integer index = indexes.get(revID);
+            return index != null ? index : -1;
+        }
+
+        boolean isLeaf(int i) {
+            return (flags[i] & C4RevisionFlags.kRevLeaf) != 0;
+        }
+
+        boolean isDeleted(int i) {
+            return (flags[i] & C4RevisionFlags.kRevDeleted) != 0;
+        }
+
+        /**
+         * Bodiless RevisionInternal of the i-th revision, as ForestBridge.revisionObject()
+         * would make it.
+         */
+        RevisionInternal revisionObject(int i) {
+            RevisionInternal rev = new RevisionInternal(docID, revIDs[i], isDeleted(i));
+            rev.setSequence(sequences[i]);
+            return rev;
+        }
+    }
+}
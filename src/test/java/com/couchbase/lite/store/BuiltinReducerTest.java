@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc All rights reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class BuiltinReducerTest extends TestCase {
+
+    private static Object reduce(BuiltinReducer reducer, Object... values) {
+        return reducer.reduce(null, Arrays.asList(values), false);
+    }
+
+    private static Object rereduce(BuiltinReducer reducer, Object... reduced) {
+        return reducer.reduce(null, Arrays.asList(reduced), true);
+    }
+
+    private static void assertStats(Object stats, double sum, long count, double min,
+                                    double max, double sumsqr) {
+        Map<?, ?> map = (Map<?, ?>) stats;
+        assertEquals(sum, ((Number) map.get("sum")).doubleValue(), 0.0);
+        assertEquals(count, ((Number) map.get("count")).longValue());
+        assertEquals(min, ((Number) map.get("min")).doubleValue(), 0.0);
+        assertEquals(max, ((Number) map.get("max")).doubleValue(), 0.0);
+        assertEquals(sumsqr, ((Number) map.get("sumsqr")).doubleValue(), 0.0);
+    }
+
+    public void testForName() {
+        assertSame(BuiltinReducer.COUNT, BuiltinReducer.forName("_count"));
+        assertSame(BuiltinReducer.SUM, BuiltinReducer.forName("_sum"));
+        assertSame(BuiltinReducer.STATS, BuiltinReducer.forName("_stats"));
+        assertNull(BuiltinReducer.forName("_approx_count_distinct"));
+    }
+
+    public void testCount() {
+        assertEquals(3L, reduce(BuiltinReducer.COUNT, 1, "a", null));
+        assertEquals(0L, reduce(BuiltinReducer.COUNT));
+        assertEquals(7L, rereduce(BuiltinReducer.COUNT, 3L, 4L));
+    }
+
+    public void testCountJSON() {
+        BuiltinReducer.Accumulator acc = BuiltinReducer.COUNT.newAccumulator();
+        acc.addJSON(null);
+        acc.addJSON(null);
+        assertEquals(2L, BuiltinReducer.COUNT.result(acc));
+        acc.reset();
+        assertEquals(0L, BuiltinReducer.COUNT.result(acc));
+    }
+
+    public void testSum() {
+        assertEquals(6L, reduce(BuiltinReducer.SUM, 1, 2L, 3));
+        assertEquals(3.5, reduce(BuiltinReducer.SUM, 1, 2.5));
+        assertEquals(3L, reduce(BuiltinReducer.SUM, 1, 2.0));
+        assertEquals(3L, reduce(BuiltinReducer.SUM, 1, "x", null, 2));
+        assertEquals(0L, reduce(BuiltinReducer.SUM));
+    }
+
+    public void testSumIsExactForLargeIntegers() {
+        // 2^53 + 1 can't be represented as a double:
+        long big = 9007199254740993L;
+        assertEquals(big + 2, reduce(BuiltinReducer.SUM, big, 2));
+        assertEquals(Long.MAX_VALUE, reduce(BuiltinReducer.SUM, Long.MAX_VALUE - 1, 1));
+        // Overflow falls back to a double:
+        Object sum = reduce(BuiltinReducer.SUM, Long.MAX_VALUE, 1);
+        assertTrue(sum instanceof Double);
+        assertEquals(Math.pow(2, 63), (Double) sum, 0.0);
+    }
+
+    public void testSumJSON() {
+        BuiltinReducer.Accumulator acc = BuiltinReducer.SUM.newAccumulator();
+        acc.addJSON("12".getBytes());
+        acc.addJSON("-3".getBytes());
+        assertEquals(9L, BuiltinReducer.SUM.result(acc));
+        acc.addJSON("0.5".getBytes());
+        assertEquals(9.5, BuiltinReducer.SUM.result(acc));
+        assertEquals(3L, acc.count);
+
+        acc.reset();
+        acc.addJSON("9007199254740993".getBytes());
+        acc.addJSON("9007199254740993".getBytes());
+        assertEquals(18014398509481986L, BuiltinReducer.SUM.result(acc));
+    }
+
+    public void testSumRereduce() {
+        Object a = reduce(BuiltinReducer.SUM, 1, 2, 3);
+        Object b = reduce(BuiltinReducer.SUM, 4);
+        assertEquals(10L, rereduce(BuiltinReducer.SUM, a, b));
+        Object c = reduce(BuiltinReducer.SUM, 0.5);
+        assertEquals(10.5, rereduce(BuiltinReducer.SUM, a, b, c));
+    }
+
+    public void testSumArrays() {
+        assertEquals(Arrays.asList(4L, 6L),
+                reduce(BuiltinReducer.SUM, Arrays.asList(1, 2), Arrays.asList(3, 4)));
+        // Shorter arrays and plain numbers, which count towards the first element:
+        assertEquals(Arrays.asList(9L, 6L, 5L),
+                reduce(BuiltinReducer.SUM, Arrays.asList(1, 2), Arrays.asList(3, 4, 5), 5));
+        assertEquals(Arrays.asList(7.5, 3L),
+                reduce(BuiltinReducer.SUM, 1, Arrays.asList(2, 3), Arrays.asList(4.5), "x"));
+        assertEquals(Arrays.asList(3L),
+                reduce(BuiltinReducer.SUM, Arrays.asList(), 3));
+    }
+
+    public void testSumArraysRereduce() {
+        Object a = reduce(BuiltinReducer.SUM, Arrays.asList(1, 2), Arrays.asList(3, 4));
+        Object b = reduce(BuiltinReducer.SUM, Arrays.asList(10, 20, 30));
+        assertEquals(Arrays.asList(14L, 26L, 30L), rereduce(BuiltinReducer.SUM, a, b));
+    }
+
+    public void testStats() {
+        assertStats(reduce(BuiltinReducer.STATS, 1, 2, 3, "x"), 6, 3, 1, 3, 14);
+        assertStats(reduce(BuiltinReducer.STATS, -1.5, 4), 2.5, 2, -1.5, 4, 18.25);
+        assertStats(reduce(BuiltinReducer.STATS), 0, 0, 0, 0, 0);
+    }
+
+    public void testStatsRereduce() {
+        Object a = reduce(BuiltinReducer.STATS, 1, 2);
+        Object b = reduce(BuiltinReducer.STATS, 3);
+        Object empty = reduce(BuiltinReducer.STATS);
+        assertStats(rereduce(BuiltinReducer.STATS, a, b, empty), 6, 3, 1, 3, 14);
+    }
+
+    public void testStatsArrays() {
+        List<?> stats = (List<?>) reduce(BuiltinReducer.STATS,
+                Arrays.asList(1, 10), Arrays.asList(2, 20), 3);
+        assertEquals(2, stats.size());
+        assertStats(stats.get(0), 6, 3, 1, 3, 14);
+        assertStats(stats.get(1), 30, 2, 10, 20, 500);
+    }
+
+    public void testStatsArraysRereduce() {
+        Object a = reduce(BuiltinReducer.STATS, Arrays.asList(1, 10));
+        Object b = reduce(BuiltinReducer.STATS, Arrays.asList(2, 20), Arrays.asList(3));
+        List<?> stats = (List<?>) rereduce(BuiltinReducer.STATS, a, b);
+        assertEquals(2, stats.size());
+        assertStats(stats.get(0), 6, 3, 1, 3, 14);
+        assertStats(stats.get(1), 30, 2, 10, 20, 500);
+    }
+}